@@ -0,0 +1,50 @@
+package org.xizhang.rpc.grpc.serializer;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import org.openjdk.jmh.annotations.*;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.util.concurrent.TimeUnit;
+
+// binary and JSON round trips of one laptop
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+    private Serializer serializer;
+    private Laptop laptop;
+    private byte[] binary;
+    private String json;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidProtocolBufferException {
+        serializer = new Serializer();
+        laptop = new Generator().NewLaptop();
+        binary = laptop.toByteArray();
+        json = serializer.toJSON(laptop);
+    }
+
+    @Benchmark
+    public byte[] toBinary(){
+        return laptop.toByteArray();
+    }
+
+    @Benchmark
+    public Laptop fromBinary() throws InvalidProtocolBufferException {
+        return Laptop.parseFrom(binary);
+    }
+
+    @Benchmark
+    public String toJSON() throws InvalidProtocolBufferException {
+        return serializer.toJSON(laptop);
+    }
+
+    @Benchmark
+    public Laptop fromJSON() throws InvalidProtocolBufferException {
+        return serializer.fromJSON(json);
+    }
+}
@@ -0,0 +1,103 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
+
+// cost to the calling thread of one per message log line: the INFO line LaptopService
+// used to write for every search hit, against AccessLog with every event kept and with
+// one in a hundred kept. all of them write to a sink that discards the bytes.
+// every operation also does some work of its own, like sending the hit, so that the
+// writer keeps up and the accessLog case measures logged events rather than drops;
+// the events counters report how many were logged and dropped
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AccessLogBenchmark {
+    private static final String LAPTOP_ID = "0b0ae0a2-5c8a-4b8c-8f5e-6a3f1f6a2d1e";
+
+    // Blackhole.consumeCPU tokens per message
+    @Param({"1000"})
+    public long work;
+
+    private Logger logger;
+    private Handler handler;
+    private AccessLog accessLog;
+    private AccessLog sampledAccessLog;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Events {
+        public long logged;
+        public long dropped;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            logged = 0;
+            dropped = 0;
+        }
+
+        void count(boolean kept){
+            if(kept){
+                logged++;
+            }else{
+                dropped++;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        logger = Logger.getLogger(AccessLogBenchmark.class.getName());
+        logger.setUseParentHandlers(false);
+        handler = new StreamHandler(OutputStream.nullOutputStream(), new SimpleFormatter());
+        logger.addHandler(handler);
+        // a large ring rides out the writer's pauses
+        accessLog = new AccessLog(Writer.nullWriter(), 1 << 20);
+        sampledAccessLog = new AccessLog(Writer.nullWriter(), 1 << 20)
+                .sample(AccessLog.Event.SEARCH_HIT, 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        logger.removeHandler(handler);
+        accessLog.close();
+        sampledAccessLog.close();
+    }
+
+    // the work alone, the cost of a log line is what the other benchmarks add to it
+    @Benchmark
+    public void baseline(){
+        Blackhole.consumeCPU(work);
+    }
+
+    @Benchmark
+    public void logger(){
+        Blackhole.consumeCPU(work);
+        logger.info("found laptop with ID : " + LAPTOP_ID);
+    }
+
+    @Benchmark
+    public void accessLog(Events events){
+        Blackhole.consumeCPU(work);
+        events.count(accessLog.log(AccessLog.Event.SEARCH_HIT, LAPTOP_ID, 0));
+    }
+
+    @Benchmark
+    public void sampledAccessLog(Events events){
+        Blackhole.consumeCPU(work);
+        events.count(sampledAccessLog.log(AccessLog.Event.SEARCH_HIT, LAPTOP_ID, 0));
+    }
+}
@@ -0,0 +1,105 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.*;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.openjdk.jmh.annotations.*;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// imports a catalog of one million laptops over an in-process channel, through the
+// client-streaming CreateLaptops and through one CreateLaptop call per laptop
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CreateLaptopsBenchmark {
+    private static final int TEMPLATES = 10000;
+
+    @Param({"1000000"})
+    public int count;
+
+    private Laptop[] templates;
+    private LaptopServer server;
+    private ManagedChannel channel;
+
+    @Setup(Level.Trial)
+    public void generate(){
+        // laptops without an ID get a new one from the server, so the templates can repeat
+        Generator generator = new Generator();
+        templates = new Laptop[TEMPLATES];
+        for (int i = 0; i < TEMPLATES; i++) {
+            templates[i] = generator.NewLaptop().toBuilder().setId("").build();
+        }
+    }
+
+    // every import starts from an empty store
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        String serverName = InProcessServerBuilder.generateName();
+        server = new LaptopServer(InProcessServerBuilder.forName(serverName), 0,
+                new InMemoryLaptopStore(), new DiskImageStore("img"), new InMemoryRatingStore());
+        server.start();
+        channel = InProcessChannelBuilder.forName(serverName).build();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow();
+        server.stop();
+    }
+
+    @Benchmark
+    public CreateLaptopsResponse createLaptops() throws Exception {
+        CompletableFuture<CreateLaptopsResponse> result = new CompletableFuture<>();
+        LaptopServiceGrpc.newStub(channel).createLaptops(new ClientResponseObserver<CreateLaptopRequest, CreateLaptopsResponse>() {
+            private int sent;
+            private CreateLaptopsResponse response;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<CreateLaptopRequest> requestStream) {
+                requestStream.setOnReadyHandler(() -> {
+                    while(sent < count && requestStream.isReady()){
+                        requestStream.onNext(CreateLaptopRequest.newBuilder().setLaptop(templates[sent++ % TEMPLATES]).build());
+                        if(sent == count){
+                            requestStream.onCompleted();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(CreateLaptopsResponse value) {
+                response = value;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                result.complete(response);
+            }
+        });
+        return result.get();
+    }
+
+    @Benchmark
+    public int createLaptop(){
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        for (int i = 0; i < count; i++) {
+            stub.createLaptop(CreateLaptopRequest.newBuilder().setLaptop(templates[i % TEMPLATES]).build());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,189 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.xizhang.rpc.grpc.pcbook.pb.*;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// end to end calls of the four LaptopService RPCs over a plaintext connection to a local
+// port, so the numbers include the gRPC stubs, marshalling, the transport and the stores.
+// the in-process transport hands messages over without marshalling them, which would hide
+// the difference between the two services: plain binds the generated service, which
+// serializes every hit it sends; serialized binds bindSerializedService, as LaptopServer
+// does, which sends the bytes the store keeps
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LaptopServiceBenchmark {
+    private static final int IMAGE_SIZE = 256 << 10;
+    private static final int CHUNK_SIZE = 1024;
+    private static final int RATINGS_PER_STREAM = 100;
+
+    @Param({"10000"})
+    public int size;
+
+    @Param({"plain", "serialized"})
+    public String service;
+
+    private Path imageFolder;
+    private LaptopService laptopService;
+    private Server server;
+    private ManagedChannel channel;
+    private LaptopServiceGrpc.LaptopServiceBlockingStub blockingStub;
+    private LaptopServiceGrpc.LaptopServiceStub asyncStub;
+    private Laptop template;
+    private String[] laptopIDs;
+    private ByteString[] imageChunks;
+    private SearchLaptopRequest searchRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        imageFolder = Files.createTempDirectory("laptop-benchmark");
+        LaptopStore laptopStore = new InMemoryLaptopStore();
+        // identical uploads share one blob, the disk does not fill up during a run
+        ImageStore imageStore = new DiskImageStore(imageFolder.toString(), true);
+        laptopService = new LaptopService(laptopStore, imageStore, new InMemoryRatingStore());
+        server = ServerBuilder.forPort(0)
+                .addService(service.equals("plain") ? laptopService.bindService() : laptopService.bindSerializedService())
+                .build()
+                .start();
+        channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .build();
+        blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
+        asyncStub = LaptopServiceGrpc.newStub(channel);
+
+        Generator generator = new Generator();
+        laptopIDs = new String[size];
+        for (int i = 0; i < size; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopIDs[i] = laptop.getId();
+            laptopStore.save(laptop);
+        }
+        // the server gives every created laptop a new ID
+        template = generator.NewLaptop().toBuilder().setId("").build();
+
+        byte[] image = new byte[IMAGE_SIZE];
+        new Random(1).nextBytes(image);
+        imageChunks = new ByteString[IMAGE_SIZE / CHUNK_SIZE];
+        for (int i = 0; i < imageChunks.length; i++) {
+            imageChunks[i] = ByteString.copyFrom(image, i * CHUNK_SIZE, CHUNK_SIZE);
+        }
+        searchRequest = SearchLaptopRequest.newBuilder()
+                .setFilter(LaptopStoreBenchmark.newFilter(1500, 4, 2.5, 16))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination();
+        laptopService.close();
+        try(Stream<Path> files = Files.walk(imageFolder)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Batch {
+        // laptops per response message
+        @Param({"1", "16", "128"})
+        public int batchSize;
+    }
+
+    @Benchmark
+    public CreateLaptopResponse createLaptop(){
+        return blockingStub.createLaptop(CreateLaptopRequest.newBuilder().setLaptop(template).build());
+    }
+
+    @Benchmark
+    public void searchLaptop(Blackhole blackhole){
+        Iterator<SearchLaptopResponse> responses = blockingStub.searchLaptop(searchRequest);
+        while(responses.hasNext()){
+            blackhole.consume(responses.next());
+        }
+    }
+
+    // the same search with several laptops per message, against one per message above
+    @Benchmark
+    public void searchLaptopBatch(Batch batch, Blackhole blackhole){
+        Iterator<SearchLaptopBatchResponse> responses = blockingStub.searchLaptopBatch(SearchLaptopBatchRequest.newBuilder()
+                .setFilter(searchRequest.getFilter())
+                .setBatchSize(batch.batchSize)
+                .build());
+        while(responses.hasNext()){
+            blackhole.consume(responses.next());
+        }
+    }
+
+    // one 256 KiB image in 1 KiB chunks, as LaptopClient sends them
+    @Benchmark
+    public UploadImageResponse uploadImage() throws Exception {
+        ResponseFuture<UploadImageResponse> response = new ResponseFuture<>();
+        StreamObserver<UploadImageRequest> requestObserver = asyncStub.uploadImage(response);
+        requestObserver.onNext(UploadImageRequest.newBuilder()
+                .setInfo(ImageInfo.newBuilder().setLaptopId(laptopIDs[0]).setImageType(".jpg"))
+                .build());
+        for(ByteString chunk : imageChunks){
+            requestObserver.onNext(UploadImageRequest.newBuilder().setChunkData(chunk).build());
+        }
+        requestObserver.onCompleted();
+        return response.get();
+    }
+
+    // a stream of 100 ratings over random laptops
+    @Benchmark
+    @OperationsPerInvocation(RATINGS_PER_STREAM)
+    public RateLaptopResponse rateLaptop() throws Exception {
+        ResponseFuture<RateLaptopResponse> response = new ResponseFuture<>();
+        StreamObserver<RateLaptopRequest> requestObserver = asyncStub.rateLaptop(response);
+        Random random = new Random();
+        for (int i = 0; i < RATINGS_PER_STREAM; i++) {
+            requestObserver.onNext(RateLaptopRequest.newBuilder()
+                    .setLaptopId(laptopIDs[random.nextInt(laptopIDs.length)])
+                    .setScore(1 + random.nextInt(10))
+                    .build());
+        }
+        requestObserver.onCompleted();
+        return response.get();
+    }
+
+    // completes with the last response of a call
+    private static class ResponseFuture<T> extends CompletableFuture<T> implements StreamObserver<T> {
+        private T last;
+
+        @Override
+        public void onNext(T value) {
+            last = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            complete(last);
+        }
+    }
+}
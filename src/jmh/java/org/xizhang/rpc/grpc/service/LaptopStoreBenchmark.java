@@ -0,0 +1,206 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import com.xizhang.rpc.grpc.pcbook.pb.Memory;
+import io.grpc.Context;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// search, save and find of the in-memory stores over a catalog seeded from Generator.
+// map is the baseline the columnar stores replaced: every search walks the map's laptops
+// and tests each one with isQualified. copying is the memory store with the deep copies it
+// used to make in save, find and on every hit, run it with -prof gc for the bytes they cost
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LaptopStoreBenchmark {
+    @Param({"map", "copying", "memory", "parallel", "sharded", "cached"})
+    public String store;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    // broad matches most laptops, selective only a few
+    @Param({"broad", "selective"})
+    public String filter;
+
+    private LaptopStore laptopStore;
+    private String[] ids;
+    private Filter searchFilter;
+    private Laptop template;
+    private final AtomicLong saved = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        laptopStore = newStore(store);
+        Generator generator = new Generator();
+        ids = new String[size];
+        for (int i = 0; i < size; i++) {
+            Laptop laptop = generator.NewLaptop();
+            ids[i] = laptop.getId();
+            laptopStore.save(laptop);
+        }
+        template = generator.NewLaptop();
+        searchFilter = filter.equals("broad") ? newFilter(3000, 2, 2.0, 4) : newFilter(1200, 8, 3.4, 64);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if(laptopStore instanceof Closeable closeable){
+            closeable.close();
+        }
+    }
+
+    @Benchmark
+    public void search(Blackhole blackhole){
+        laptopStore.search(Context.current(), searchFilter, blackhole::consume);
+    }
+
+    @Benchmark
+    public Laptop find(){
+        return laptopStore.find(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    // includes setting a fresh ID on a template laptop, the same for every store
+    @Benchmark
+    public void save(){
+        laptopStore.save(template.toBuilder().setId("saved-" + saved.incrementAndGet()).build());
+    }
+
+    static LaptopStore newStore(String store){
+        int processors = Runtime.getRuntime().availableProcessors();
+        switch (store){
+            case "map":
+                return new MapScanLaptopStore();
+            case "copying":
+                return new CopyingLaptopStore(new InMemoryLaptopStore());
+            case "memory":
+                return new InMemoryLaptopStore();
+            // a pool of its own, as LaptopServer gives the sharded store
+            case "parallel":
+                return new InMemoryLaptopStore(new ForkJoinPool(processors), processors);
+            case "sharded":
+                return new ShardedLaptopStore(processors);
+            // searches after the first replay the cached result
+            case "cached":
+                return new CachingLaptopStore(new InMemoryLaptopStore(), 256L << 20);
+            default:
+                throw new IllegalArgumentException("unknown store " + store);
+        }
+    }
+
+    // laptops in a map, searched by testing every value. pages follow save order, which a
+    // sorted map of save sequence numbers keeps
+    static class MapScanLaptopStore implements LaptopStore {
+        private final ConcurrentMap<String, Laptop> data = new ConcurrentHashMap<>();
+        private final ConcurrentNavigableMap<Long, Laptop> order = new ConcurrentSkipListMap<>();
+        // guarded by this, so that positions are published in the order they are taken
+        private long saved;
+
+        @Override
+        public synchronized void save(Laptop laptop) {
+            if(data.putIfAbsent(laptop.getId(), laptop) != null){
+                throw new AlreadyExistsException("laptop ID already exists");
+            }
+            order.put(saved++, laptop);
+        }
+
+        @Override
+        public Laptop find(String id) {
+            return data.get(id);
+        }
+
+        @Override
+        public void search(Context ctx, Filter filter, LaptopStream stream) {
+            for(Laptop laptop : data.values()){
+                if(ctx.isCancelled()){
+                    return;
+                }
+                if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                    stream.send(laptop);
+                }
+            }
+        }
+
+        @Override
+        public long search(Context ctx, Filter filter, long after, int limit, LaptopStream stream) {
+            long last = -1;
+            int sent = 0;
+            for(Map.Entry<Long, Laptop> entry : order.tailMap(after, false).entrySet()){
+                if(ctx.isCancelled()){
+                    return -1;
+                }
+                if(!InMemoryLaptopStore.isQualified(filter, entry.getValue())){
+                    continue;
+                }
+                if(sent == limit){
+                    return last;
+                }
+                stream.send(entry.getValue());
+                last = entry.getKey();
+                sent++;
+            }
+            return -1;
+        }
+    }
+
+    // copies every laptop that goes in or comes out with toBuilder().build()
+    static class CopyingLaptopStore implements LaptopStore {
+        private final LaptopStore store;
+
+        CopyingLaptopStore(LaptopStore store){
+            this.store = store;
+        }
+
+        @Override
+        public void save(Laptop laptop) {
+            store.save(laptop.toBuilder().build());
+        }
+
+        @Override
+        public Laptop find(String id) {
+            Laptop laptop = store.find(id);
+            return laptop == null ? null : laptop.toBuilder().build();
+        }
+
+        @Override
+        public void search(Context ctx, Filter filter, LaptopStream stream) {
+            store.search(ctx, filter, laptop -> stream.send(laptop.toBuilder().build()));
+        }
+
+        @Override
+        public long search(Context ctx, Filter filter, long after, int limit, LaptopStream stream) {
+            return store.search(ctx, filter, after, limit, laptop -> stream.send(laptop.toBuilder().build()));
+        }
+    }
+
+    static Filter newFilter(double maxPrice, int minCores, double minGhz, long minRamGB) {
+        Memory minRam = Memory.newBuilder()
+                .setValue(minRamGB)
+                .setUnit(Memory.Unit.GIGABYTE)
+                .build();
+        return Filter.newBuilder()
+                .setMaxPriceUsd(maxPrice)
+                .setMinCpuCores(minCores)
+                .setMinCpuGhz(minGhz)
+                .setMinRam(minRam)
+                .build();
+    }
+}
@@ -0,0 +1,82 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import org.openjdk.jmh.annotations.*;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+// heap a store holds on top of the laptops it is given: the map scan baseline of
+// LaptopStoreBenchmark against the columnar memory store, which also keeps the filter
+// columns, the index and the serialized laptops. the laptops are generated once and live
+// through every iteration, each iteration fills an empty store and measures the used heap
+// after a full gc; the bytes counters are the result, the time is only the fill
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LaptopStoreFootprintBenchmark {
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    @Param({"map", "memory"})
+    public String store;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    private Laptop[] laptops;
+    private LaptopStore laptopStore;
+    private long baseline;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long bytes;
+        public long bytesPerLaptop;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            bytes = 0;
+            bytesPerLaptop = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generate(){
+        Generator generator = new Generator();
+        laptops = new Laptop[size];
+        for (int i = 0; i < size; i++) {
+            laptops[i] = generator.NewLaptop();
+        }
+    }
+
+    // the previous iteration's store is dropped before the baseline is taken
+    @Setup(Level.Iteration)
+    public void setUp(){
+        laptopStore = null;
+        baseline = usedHeap();
+    }
+
+    @Benchmark
+    public void fill(Footprint footprint){
+        // kept in a field so that it is still reachable while the heap is measured
+        laptopStore = LaptopStoreBenchmark.newStore(store);
+        for(Laptop laptop : laptops){
+            laptopStore.save(laptop);
+        }
+        footprint.bytes = usedHeap() - baseline;
+        footprint.bytesPerLaptop = footprint.bytes / size;
+    }
+
+    private static long usedHeap(){
+        // a few rounds, so that objects freed by finalization or reference processing go too
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,123 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import io.grpc.Context;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// save and search throughput of one store shared by 1 to 32 threads, to compare how the
+// single store and the sharded store scale. every ThreadsN class runs the benchmarks with
+// its own thread count. ParallelSearch instead scales one search over 1 to 32 cores
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class LaptopStoreScalingBenchmark {
+    @Param({"memory", "sharded"})
+    public String store;
+
+    private LaptopStore laptopStore;
+    private Filter filter;
+    private Laptop template;
+    private final AtomicLong saved = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setUp(){
+        // a fresh store per iteration, so that saves do not grow it without bound
+        laptopStore = LaptopStoreBenchmark.newStore(store);
+        Generator generator = new Generator();
+        for (int i = 0; i < 50000; i++) {
+            laptopStore.save(generator.NewLaptop());
+        }
+        template = generator.NewLaptop();
+        filter = LaptopStoreBenchmark.newFilter(1500, 4, 2.5, 16);
+    }
+
+    @Benchmark
+    public void save(){
+        laptopStore.save(template.toBuilder().setId("saved-" + saved.incrementAndGet()).build());
+    }
+
+    @Benchmark
+    public void search(Blackhole blackhole){
+        laptopStore.search(Context.current(), filter, blackhole::consume);
+    }
+
+    // one caller, one search split into partitions over a pool of its own
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Fork(1)
+    @Threads(1)
+    public static class ParallelSearch {
+        private static final int TEMPLATES = 1000;
+
+        @Param({"1", "2", "4", "8", "16", "32"})
+        public int parallelism;
+
+        // more partitions than workers lets a worker that finishes early take another one
+        @Param({"1", "4"})
+        public int partitionsPerWorker;
+
+        @Param({"1000000"})
+        public int size;
+
+        private ForkJoinPool pool;
+        private LaptopStore laptopStore;
+        private Filter filter;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            pool = new ForkJoinPool(parallelism);
+            laptopStore = new InMemoryLaptopStore(pool, parallelism * partitionsPerWorker);
+            // copies of a few templates share their nested messages, a million laptops fit the heap
+            Generator generator = new Generator();
+            Laptop[] templates = new Laptop[TEMPLATES];
+            for (int i = 0; i < TEMPLATES; i++) {
+                templates[i] = generator.NewLaptop();
+            }
+            for (int i = 0; i < size; i++) {
+                laptopStore.save(templates[i % TEMPLATES].toBuilder().setId("laptop-" + i).build());
+            }
+            filter = LaptopStoreBenchmark.newFilter(3000, 2, 2.0, 4);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            pool.shutdown();
+        }
+
+        @Benchmark
+        public void search(Blackhole blackhole){
+            laptopStore.search(Context.current(), filter, blackhole::consume);
+        }
+    }
+
+    @Threads(1)
+    public static class Threads1 extends LaptopStoreScalingBenchmark {}
+
+    @Threads(2)
+    public static class Threads2 extends LaptopStoreScalingBenchmark {}
+
+    @Threads(4)
+    public static class Threads4 extends LaptopStoreScalingBenchmark {}
+
+    @Threads(8)
+    public static class Threads8 extends LaptopStoreScalingBenchmark {}
+
+    @Threads(16)
+    public static class Threads16 extends LaptopStoreScalingBenchmark {}
+
+    @Threads(32)
+    public static class Threads32 extends LaptopStoreScalingBenchmark {}
+}
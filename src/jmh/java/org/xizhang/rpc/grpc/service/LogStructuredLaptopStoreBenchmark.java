@@ -0,0 +1,111 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import org.openjdk.jmh.annotations.*;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public class LogStructuredLaptopStoreBenchmark {
+
+    // durable saves from 32 threads, with group commit capped at maxBatchSize records per fsync
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 2, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Fork(1)
+    @Threads(32)
+    public static class Save {
+        @Param({"1", "16", "256"})
+        public int maxBatchSize;
+
+        private Path directory;
+        private LogStructuredLaptopStore laptopStore;
+        private Laptop template;
+        private final AtomicLong saved = new AtomicLong();
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("laptop-log");
+            laptopStore = new LogStructuredLaptopStore(directory, new InMemoryLaptopStore(), maxBatchSize, 64L << 20);
+            template = new Generator().NewLaptop();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            laptopStore.close();
+            delete(directory);
+        }
+
+        @Benchmark
+        public void save(){
+            laptopStore.save(template.toBuilder().setId("saved-" + saved.incrementAndGet()).build());
+        }
+    }
+
+    // startup of a store whose log holds one million laptops
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    @Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+    public static class Recover {
+        @Param({"1000000"})
+        public int count;
+
+        private Path directory;
+        private LogStructuredLaptopStore recovered;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("laptop-log");
+            LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory);
+            Generator generator = new Generator();
+            Laptop[] templates = new Laptop[1000];
+            for (int i = 0; i < templates.length; i++) {
+                templates[i] = generator.NewLaptop();
+            }
+            List<Laptop> batch = new ArrayList<>(4096);
+            for (int i = 0; i < count; i++) {
+                batch.add(templates[i % templates.length].toBuilder().setId("laptop-" + i).build());
+                if(batch.size() == 4096 || i == count - 1){
+                    laptopStore.saveAll(batch);
+                    batch.clear();
+                }
+            }
+            laptopStore.close();
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            recovered.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(directory);
+        }
+
+        @Benchmark
+        public LogStructuredLaptopStore recover() throws IOException {
+            recovered = new LogStructuredLaptopStore(directory);
+            return recovered;
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try(Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.*;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+// cost of MetricsServerInterceptor per call, with and without it in front of the service.
+// both ends run calls on the calling thread and the RPCs do almost no work, so the
+// difference is mostly the interceptor's own: TopRatedLaptops for a unary call and
+// SearchLaptop for the per message cost
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsInterceptorBenchmark {
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private LaptopService laptopService;
+    private Server server;
+    private ManagedChannel channel;
+    private LaptopServiceGrpc.LaptopServiceBlockingStub stub;
+    private TopRatedLaptopsRequest topRequest;
+    private SearchLaptopRequest searchRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        LaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+        for (int i = 0; i < 100; i++) {
+            laptopStore.save(generator.NewLaptop());
+        }
+        laptopService = new LaptopService(laptopStore, new DiskImageStore("img"),
+                new LeaderboardRatingStore(new InMemoryRatingStore()));
+        ServerServiceDefinition service = laptopService.bindSerializedService();
+        if(metrics){
+            service = ServerInterceptors.intercept(service, new MetricsServerInterceptor());
+        }
+
+        String serverName = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(serverName).directExecutor().addService(service).build().start();
+        channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+        stub = LaptopServiceGrpc.newBlockingStub(channel);
+        topRequest = TopRatedLaptopsRequest.newBuilder().setK(1).build();
+        // every laptop matches, 100 messages per call
+        searchRequest = SearchLaptopRequest.newBuilder()
+                .setFilter(LaptopStoreBenchmark.newFilter(Double.MAX_VALUE, 0, 0, 0))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination();
+        laptopService.close();
+    }
+
+    @Benchmark
+    public TopRatedLaptopsResponse unary(){
+        return stub.topRatedLaptops(topRequest);
+    }
+
+    // calls of one method from every core update the same adders and recorder
+    @Benchmark
+    @Threads(Threads.MAX)
+    public TopRatedLaptopsResponse unaryContended(){
+        return stub.topRatedLaptops(topRequest);
+    }
+
+    @Benchmark
+    public void serverStreaming(Blackhole blackhole){
+        Iterator<SearchLaptopResponse> responses = stub.searchLaptop(searchRequest);
+        while(responses.hasNext()){
+            blackhole.consume(responses.next());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// 64 threads rating the same laptop, the worst case for a rating store, and the same
+// threads rating laptops spread over a large catalog
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class RatingStoreBenchmark {
+    @Param({"memory", "striped"})
+    public String store;
+
+    private RatingStore ratingStore;
+    private String hotLaptopID;
+    private String[] laptopIDs;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        ratingStore = store.equals("memory") ? new InMemoryRatingStore() : new StripedRatingStore();
+        hotLaptopID = UUID.randomUUID().toString();
+        laptopIDs = new String[100000];
+        for (int i = 0; i < laptopIDs.length; i++) {
+            laptopIDs[i] = UUID.randomUUID().toString();
+        }
+    }
+
+    @Benchmark
+    public Rating addHot(){
+        return ratingStore.add(hotLaptopID, 5);
+    }
+
+    @Benchmark
+    public Rating addSpread(){
+        return ratingStore.add(laptopIDs[ThreadLocalRandom.current().nextInt(laptopIDs.length)], 5);
+    }
+}
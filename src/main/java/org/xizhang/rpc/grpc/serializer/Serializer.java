@@ -1,6 +1,7 @@
 package org.xizhang.rpc.grpc.serializer;
 
 import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.util.JsonFormat;
 import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
 
@@ -29,12 +30,22 @@ public class Serializer {
         }
     }
 
+    public String toJSON(Laptop laptop) throws InvalidProtocolBufferException {
+        JsonFormat.Printer printer = JsonFormat.printer()
+                .includingDefaultValueFields()
+                .preservingProtoFieldNames();
+        return printer.print(laptop);
+    }
+
+    public Laptop fromJSON(String json) throws InvalidProtocolBufferException {
+        Laptop.Builder builder = Laptop.newBuilder();
+        JsonFormat.parser().merge(json, builder);
+        return builder.build();
+    }
+
     public void writeJSONFile(Laptop laptop, String filename){
         try(FileOutputStream outputStream = new FileOutputStream(filename);){
-            JsonFormat.Printer printer = JsonFormat.printer()
-                    .includingDefaultValueFields()
-                    .preservingProtoFieldNames();
-            String jsonString = printer.print(laptop);
+            String jsonString = toJSON(laptop);
             System.out.println(jsonString);
             outputStream.write(jsonString.getBytes());
         }catch (Exception e){
@@ -0,0 +1,211 @@
+package org.xizhang.rpc.grpc.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// structured log of per message events (search hits, image chunks, ratings) for hot paths
+// where a java.util.logging line per message costs more than the message itself.
+// log only stores the event's fields in a slot of a bounded ring buffer, without locking or
+// building a string; a background thread formats and writes the lines. an event that is not
+// sampled, or that finds the buffer full, is dropped before anything is done with it
+public class AccessLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+
+    public enum Event { CREATE, SEARCH_HIT, IMAGE_CHUNK, RATE }
+
+    // logs nothing, for services and clients that do not keep an access log
+    public static final AccessLog NONE = new AccessLog();
+
+    private static final int DRAIN_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final Slot[] slots;
+    private final int mask;
+    // next slot to claim, shared by all producers
+    private final AtomicLong tail;
+    // next slot to write, only used by the writer thread
+    private long head;
+    private final int[] sampleEvery;
+    private final LongAdder dropped;
+    private final Writer out;
+    private final Thread writer;
+    private volatile boolean running;
+
+    private AccessLog(){
+        this.slots = null;
+        this.mask = 0;
+        this.tail = null;
+        this.sampleEvery = null;
+        this.dropped = new LongAdder();
+        this.out = null;
+        this.writer = null;
+    }
+
+    // capacity is rounded up to a power of two
+    public AccessLog(Writer out, int capacity){
+        if(capacity < 1 || capacity > 1 << 30){
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        this.mask = size - 1;
+        this.tail = new AtomicLong();
+        this.sampleEvery = new int[Event.values().length];
+        Arrays.fill(sampleEvery, 1);
+        this.dropped = new LongAdder();
+        this.out = out;
+        this.running = true;
+        this.writer = new Thread(this::run, "laptop-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // keeps about one in `every` events of this kind, 1 keeps them all
+    public AccessLog sample(Event event, int every){
+        if(every < 1){
+            throw new IllegalArgumentException("invalid sampling " + every);
+        }
+        if(sampleEvery != null){
+            sampleEvery[event.ordinal()] = every;
+        }
+        return this;
+    }
+
+    // value is the event's number: chunk size for IMAGE_CHUNK, score (or the average a
+    // client got back) for RATE, otherwise 0. returns false if the event was dropped
+    // because the buffer was full, sampled out events count as handled
+    public boolean log(Event event, String laptopID, double value){
+        if(slots == null){
+            return true;
+        }
+        int every = sampleEvery[event.ordinal()];
+        if(every > 1 && ThreadLocalRandom.current().nextInt(every) != 0){
+            return true;
+        }
+
+        long position = tail.get();
+        Slot slot;
+        while(true){
+            slot = slots[(int) position & mask];
+            long available = slot.sequence - position;
+            if(available == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    break;
+                }
+                position = tail.get();
+            }else if(available < 0){
+                // the writer has not caught up with a whole buffer, the event is lost
+                dropped.increment();
+                return false;
+            }else{
+                position = tail.get();
+            }
+        }
+        slot.time = System.currentTimeMillis();
+        slot.event = event;
+        slot.laptopID = laptopID;
+        slot.value = value;
+        // publishes the fields to the writer
+        slot.sequence = position + 1;
+        return true;
+    }
+
+    // events lost to a full buffer, sampled out events are not counted
+    public long getDropped(){
+        return dropped.sum();
+    }
+
+    // writes the events logged so far, then stops the writer
+    @Override
+    public void close() throws IOException {
+        if(writer == null || !running){
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try{
+            writer.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    private void run(){
+        StringBuilder line = new StringBuilder(128);
+        boolean failed = false;
+        boolean unflushed = false;
+        while(true){
+            int written = 0;
+            Slot slot;
+            while(written < DRAIN_BATCH && (slot = slots[(int) head & mask]).sequence == head + 1){
+                line.setLength(0);
+                line.append(Instant.ofEpochMilli(slot.time)).append(' ')
+                        .append(slot.event).append(' ')
+                        .append(slot.laptopID);
+                double value = slot.value;
+                if(value == (long) value){
+                    line.append(' ').append((long) value);
+                }else{
+                    line.append(' ').append(value);
+                }
+                line.append('\n');
+                slot.laptopID = null;
+                // hands the slot back to the producers, one lap ahead
+                slot.sequence = head + slots.length;
+                head++;
+                written++;
+                if(!failed){
+                    try{
+                        out.append(line);
+                        unflushed = true;
+                    }catch (IOException e){
+                        // keeps draining so producers are not blocked, the lines are lost
+                        failed = true;
+                        logger.log(Level.SEVERE, "cannot write access log", e);
+                    }
+                }
+            }
+            if(written > 0){
+                continue;
+            }
+            if(unflushed && !failed){
+                try{
+                    out.flush();
+                }catch (IOException e){
+                    failed = true;
+                    logger.log(Level.SEVERE, "cannot write access log", e);
+                }
+                unflushed = false;
+            }
+            if(!running && slots[(int) head & mask].sequence != head + 1){
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static class Slot {
+        volatile long sequence;
+        long time;
+        Event event;
+        String laptopID;
+        double value;
+
+        Slot(long sequence){
+            this.sequence = sequence;
+        }
+    }
+}
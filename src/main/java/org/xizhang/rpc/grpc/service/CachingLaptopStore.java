@@ -0,0 +1,338 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import io.grpc.Context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// caches the results of full searches by filter in front of another store. the key is the
+// filter's serialized bytes, so equal filters share an entry. cached filters are kept in a
+// FilterIndex, a saved laptop is appended to the results of the filters it matches, so
+// entries stay valid without being dropped on every save. the cache holds references to the
+// laptops the store already keeps plus the bytes it serializes for saved laptops; once it is
+// over maxBytes or maxEntries the least recently used entries are evicted
+public class CachingLaptopStore implements LaptopStore {
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+    // rough heap cost of an entry without its hits, and of one hit (laptop and bytes reference)
+    private static final int ENTRY_BYTES = 128;
+    private static final int HIT_BYTES = 16;
+
+    private final LaptopStore laptopStore;
+    private final long maxBytes;
+    private final int maxEntries;
+    // ready entries in access order, guarded by itself
+    private final LinkedHashMap<ByteString, Entry> entries;
+    // ready entries and those whose search is running
+    private final FilterIndex<Entry> filters;
+    // bumped before every save reaches the store
+    private final AtomicLong version;
+    private final AtomicLong bytes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    public CachingLaptopStore(LaptopStore laptopStore, long maxBytes){
+        this(laptopStore, maxBytes, DEFAULT_MAX_ENTRIES);
+    }
+
+    public CachingLaptopStore(LaptopStore laptopStore, long maxBytes, int maxEntries){
+        if(maxBytes <= 0){
+            throw new IllegalArgumentException("invalid cache size " + maxBytes);
+        }
+        if(maxEntries < 1){
+            throw new IllegalArgumentException("invalid entry count " + maxEntries);
+        }
+        this.laptopStore = laptopStore;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.filters = new FilterIndex<>();
+        this.version = new AtomicLong();
+        this.bytes = new AtomicLong();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    @Override
+    public void save(Laptop laptop) {
+        long saveVersion = version.incrementAndGet();
+        laptopStore.save(laptop);
+        saved(laptop, saveVersion);
+    }
+
+    @Override
+    public BitSet saveAll(List<Laptop> laptops) {
+        long saveVersion = version.incrementAndGet();
+        BitSet existing = laptopStore.saveAll(laptops);
+        for (int i = existing.nextClearBit(0); i < laptops.size(); i = existing.nextClearBit(i + 1)) {
+            saved(laptops.get(i), saveVersion);
+        }
+        return existing;
+    }
+
+    @Override
+    public Laptop find(String id) {
+        return laptopStore.find(id);
+    }
+
+    @Override
+    public Set<String> existing(Collection<String> ids) {
+        return laptopStore.existing(ids);
+    }
+
+    @Override
+    public void search(Context ctx, Filter filter, LaptopStream stream) {
+        ByteString key = filter.toByteString();
+        Entry entry;
+        synchronized (entries){
+            entry = entries.get(key);
+        }
+        if(entry != null){
+            hits.increment();
+            entry.replay(ctx, stream);
+            return;
+        }
+
+        misses.increment();
+        // saves that reach the cache while the search runs are held by the entry and
+        // merged into its results afterwards
+        Entry recorded = new Entry(key, filter);
+        filters.add(filter, recorded);
+        laptopStore.search(ctx, filter, new LaptopStream() {
+            @Override
+            public void send(Laptop laptop) {
+                send(laptop, null);
+            }
+
+            @Override
+            public void send(Laptop laptop, ByteString serialized) {
+                recorded.append(laptop, serialized);
+                if(serialized == null){
+                    stream.send(laptop);
+                }else{
+                    stream.send(laptop, serialized);
+                }
+            }
+        });
+        if(ctx.isCancelled() || recorded.bytes > maxBytes){
+            filters.remove(recorded);
+            return;
+        }
+        insert(recorded);
+    }
+
+    // pages are positioned in the store's own order, they are not cached
+    @Override
+    public long search(Context ctx, Filter filter, long after, int limit, LaptopStream stream) {
+        return laptopStore.search(ctx, filter, after, limit, stream);
+    }
+
+    // hits over hits and misses of full searches, 0 before the first search
+    public double getHitRatio(){
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    // estimated heap held by the cache, not counting the laptops which the store holds anyway
+    public long getBytes(){
+        return bytes.get();
+    }
+
+    public int getEntries(){
+        synchronized (entries){
+            return entries.size();
+        }
+    }
+
+    private void insert(Entry entry){
+        // saves that had started before the search ended may be in its results already
+        bytes.addAndGet(entry.ready(version.get()));
+        synchronized (entries){
+            Entry previous = entries.put(entry.key, entry);
+            if(previous != null){
+                // a concurrent miss of the same filter got here first
+                drop(previous);
+            }
+            evict();
+        }
+    }
+
+    private void saved(Laptop laptop, long saveVersion){
+        if(filters.size() == 0){
+            return;
+        }
+        ByteString[] serialized = new ByteString[1];
+        long[] grown = new long[1];
+        filters.forEachMatch(laptop, entry -> {
+            if(serialized[0] == null){
+                serialized[0] = laptop.toByteString();
+            }
+            grown[0] += entry.saved(laptop, serialized[0], saveVersion);
+        });
+        if(grown[0] > 0){
+            bytes.addAndGet(grown[0]);
+            synchronized (entries){
+                evict();
+            }
+        }
+    }
+
+    // called with the entries' lock held. the first entry in access order is the least
+    // recently used one
+    private void evict(){
+        Iterator<Entry> iterator = entries.values().iterator();
+        while((bytes.get() > maxBytes || entries.size() > maxEntries) && iterator.hasNext()){
+            Entry oldest = iterator.next();
+            iterator.remove();
+            drop(oldest);
+        }
+    }
+
+    private void drop(Entry entry){
+        filters.remove(entry);
+        bytes.addAndGet(-entry.drop());
+    }
+
+    // the hits of one filter, in the order the search sent them followed by later saves.
+    // appends are serialized by the entry's lock, readers take the size and then the
+    // arrays without locking: arrays are only replaced by larger copies
+    private static class Entry {
+        final ByteString key;
+        final Filter filter;
+        volatile long bytes;
+        private volatile Laptop[] laptops;
+        private volatile ByteString[] serialized;
+        private volatile int size;
+        // guarded by this. saves seen while the search runs, and the last version that
+        // may have reached the store before the search ended
+        private List<Laptop> pending;
+        private List<ByteString> pendingBytes;
+        private long searchVersion;
+        private boolean ready;
+        private boolean dropped;
+
+        Entry(ByteString key, Filter filter){
+            this.key = key;
+            this.filter = filter;
+            this.laptops = new Laptop[16];
+            this.serialized = new ByteString[16];
+            this.bytes = ENTRY_BYTES + key.size();
+            this.pending = new ArrayList<>();
+            this.pendingBytes = new ArrayList<>();
+            this.searchVersion = Long.MAX_VALUE;
+        }
+
+        // a hit of the entry's own search
+        synchronized void append(Laptop laptop, ByteString laptopBytes){
+            int n = size;
+            if(n == laptops.length){
+                serialized = Arrays.copyOf(serialized, n << 1);
+                laptops = Arrays.copyOf(laptops, n << 1);
+            }
+            serialized[n] = laptopBytes;
+            laptops[n] = laptop;
+            size = n + 1;
+            bytes += HIT_BYTES;
+        }
+
+        // returns the bytes added to a ready entry, 0 otherwise. the serialized copy is the
+        // cache's own, so it counts
+        synchronized long saved(Laptop laptop, ByteString laptopBytes, long saveVersion){
+            if(dropped){
+                return 0;
+            }
+            if(!ready){
+                pending.add(laptop);
+                pendingBytes.add(laptopBytes);
+                return 0;
+            }
+            // a save that started before the search ended can be among its hits. few saves
+            // straddle the end of a search, so the hits are walked rather than indexed
+            if(saveVersion <= searchVersion && contains(laptop.getId())){
+                return 0;
+            }
+            long before = bytes;
+            append(laptop, laptopBytes);
+            bytes += laptopBytes.size();
+            return bytes - before;
+        }
+
+        // merges the saves seen during the search, skipping those the search found too,
+        // and returns the entry's bytes
+        synchronized long ready(long searchVersion){
+            this.searchVersion = searchVersion;
+            if(!pending.isEmpty()){
+                Set<String> found = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    found.add(laptops[i].getId());
+                }
+                for (int i = 0; i < pending.size(); i++) {
+                    Laptop laptop = pending.get(i);
+                    if(found.add(laptop.getId())){
+                        append(laptop, pendingBytes.get(i));
+                        bytes += pendingBytes.get(i).size();
+                    }
+                }
+            }
+            pending = null;
+            pendingBytes = null;
+            ready = true;
+            return bytes;
+        }
+
+        // returns the bytes the entry was counted for
+        synchronized long drop(){
+            if(dropped || !ready){
+                dropped = true;
+                return 0;
+            }
+            dropped = true;
+            return bytes;
+        }
+
+        private boolean contains(String id){
+            for (int i = 0; i < size; i++) {
+                if(laptops[i].getId().equals(id)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void replay(Context ctx, LaptopStream stream){
+            int n = size;
+            Laptop[] laptops = this.laptops;
+            ByteString[] serialized = this.serialized;
+            for (int i = 0; i < n; i++) {
+                if(ctx.isCancelled()){
+                    return;
+                }
+                if(serialized[i] == null){
+                    stream.send(laptops[i]);
+                }else{
+                    stream.send(laptops[i], serialized[i]);
+                }
+            }
+        }
+    }
+}
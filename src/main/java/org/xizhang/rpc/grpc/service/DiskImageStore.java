@@ -1,29 +1,200 @@
 package org.xizhang.rpc.grpc.service;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import com.google.protobuf.ByteString;
+
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 public class DiskImageStore implements ImageStore{
+    private static final Logger logger = Logger.getLogger(DiskImageStore.class.getName());
+    // the type ends up in the file name, so it must not be able to point outside the folder
+    private static final Pattern IMAGE_TYPE = Pattern.compile("\\.[A-Za-z0-9]{1,10}");
     private String imageFolder;
     private ConcurrentMap<String, ImageMetadata> data;
+    // content addressed mode: images are stored once per SHA-256 digest and
+    // references counts how many image IDs point at each blob
+    private boolean contentAddressed;
+    private ConcurrentMap<String, Integer> references;
 
     public DiskImageStore(String imageFolder){
+        this(imageFolder, false);
+    }
+
+    public DiskImageStore(String imageFolder, boolean contentAddressed){
         this.imageFolder = imageFolder;
         this.data = new ConcurrentHashMap<>(0);
+        this.contentAddressed = contentAddressed;
+        this.references = new ConcurrentHashMap<>(0);
     }
+
     @Override
-    public String save(String laptopID, String imageType, ByteArrayOutputStream imageData) throws IOException {
+    public ImageWriter create(String laptopID, String imageType) throws IOException {
+        if(!IMAGE_TYPE.matcher(imageType).matches()){
+            throw new IllegalArgumentException("invalid image type " + imageType);
+        }
         String imageID = UUID.randomUUID().toString();
-        String imagePath = String.format("%s/%s%s", imageFolder, imageID, imageType);
-        FileOutputStream fileOutputStream = new FileOutputStream(imagePath);
-        imageData.writeTo(fileOutputStream);
-        fileOutputStream.close();
-        ImageMetadata metadata = new ImageMetadata(laptopID, imageType, imagePath);
-        data.put(imageID, metadata);
-        return imageID;
+        Path tempPath = Paths.get(imageFolder, imageID + imageType + ".tmp");
+        FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new DiskImageWriter(imageID, laptopID, imageType, tempPath, channel);
+    }
+
+    @Override
+    public ImageMetadata find(String imageID) {
+        return data.get(imageID);
+    }
+
+    @Override
+    public boolean delete(String imageID) throws IOException {
+        ImageMetadata metadata = data.remove(imageID);
+        if(metadata == null){
+            return false;
+        }
+        if(metadata.getDigest() == null){
+            Files.deleteIfExists(Paths.get(metadata.getPath()));
+            return true;
+        }
+        // the blob goes away with its last reference
+        try{
+            references.compute(metadata.getDigest(), (digest, count) -> {
+                if(count == null || count <= 1){
+                    deleteBlob(Paths.get(metadata.getPath()));
+                    return null;
+                }
+                return count - 1;
+            });
+        }catch (UncheckedIOException e){
+            throw e.getCause();
+        }
+        return true;
+    }
+
+    // blobs are sharded by the first two bytes of the digest: blobs/ab/cd/abcd...
+    private Path blobPath(String digest){
+        return Paths.get(imageFolder, "blobs", digest.substring(0, 2), digest.substring(2, 4), digest);
+    }
+
+    private static void deleteBlob(Path blob){
+        try{
+            Files.deleteIfExists(blob);
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MessageDigest newDigest(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // writes into a temp file and renames it on commit, so a half written image is
+    // never visible under its ID. in content addressed mode the content is hashed
+    // while it is written and the rename is skipped when the blob already exists
+    private class DiskImageWriter implements ImageWriter {
+        private final String imageID;
+        private final String laptopID;
+        private final String imageType;
+        private final Path tempPath;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long size;
+
+        DiskImageWriter(String imageID, String laptopID, String imageType, Path tempPath, FileChannel channel){
+            this.imageID = imageID;
+            this.laptopID = laptopID;
+            this.imageType = imageType;
+            this.tempPath = tempPath;
+            this.channel = channel;
+            this.digest = contentAddressed ? newDigest() : null;
+        }
+
+        @Override
+        public void write(ByteString chunk) throws IOException {
+            for(ByteBuffer buffer : chunk.asReadOnlyByteBufferList()){
+                if(digest != null){
+                    digest.update(buffer.duplicate());
+                }
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            }
+            size += chunk.size();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public String commit() throws IOException {
+            ImageMetadata metadata;
+            try{
+                channel.close();
+                metadata = digest == null ? commitFile() : commitBlob();
+            }catch (IOException e){
+                abort();
+                throw e;
+            }
+            data.put(imageID, metadata);
+            return imageID;
+        }
+
+        private ImageMetadata commitFile() throws IOException {
+            Path imagePath = Paths.get(imageFolder, imageID + imageType);
+            Files.move(tempPath, imagePath, StandardCopyOption.ATOMIC_MOVE);
+            return new ImageMetadata(laptopID, imageType, imagePath.toString());
+        }
+
+        private ImageMetadata commitBlob() throws IOException {
+            String hex = HexFormat.of().formatHex(digest.digest());
+            Path blob = blobPath(hex);
+            try{
+                references.compute(hex, (key, count) -> {
+                    try{
+                        if(count == null && !Files.exists(blob)){
+                            Files.createDirectories(blob.getParent());
+                            Files.move(tempPath, blob, StandardCopyOption.ATOMIC_MOVE);
+                        }else{
+                            // known content, only the metadata is new
+                            Files.delete(tempPath);
+                        }
+                    }catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                    return count == null ? 1 : count + 1;
+                });
+            }catch (UncheckedIOException e){
+                throw e.getCause();
+            }
+            return new ImageMetadata(laptopID, imageType, blob.toString(), hex);
+        }
+
+        @Override
+        public void abort() {
+            try{
+                channel.close();
+                Files.deleteIfExists(tempPath);
+            }catch (IOException e){
+                logger.warning("cannot clean up image " + tempPath + ": " + e.getMessage());
+            }
+        }
     }
 }
@@ -0,0 +1,59 @@
+package org.xizhang.rpc.grpc.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+// keeps a RatingSketch per laptop next to a rating store, about 300 bytes per rated laptop.
+// the sketches are not persisted: after a restart they only describe the ratings added since,
+// so a sketch's count can be lower than the count of the laptop's Rating
+public class DistributionRatingStore implements RatingStore, RatingDistributions {
+    private final RatingStore ratingStore;
+    private final ConcurrentMap<String, RatingSketch> sketches;
+
+    public DistributionRatingStore(RatingStore ratingStore){
+        this.ratingStore = ratingStore;
+        this.sketches = new ConcurrentHashMap<>(0);
+    }
+
+    @Override
+    public Rating add(String laptopID, double score) {
+        Rating rating = ratingStore.add(laptopID, score);
+        sketch(laptopID).add(score);
+        return rating;
+    }
+
+    @Override
+    public Rating add(String laptopID, double[] scores) {
+        Rating rating = ratingStore.add(laptopID, scores);
+        RatingSketch sketch = sketch(laptopID);
+        for(double score : scores){
+            sketch.add(score);
+        }
+        return rating;
+    }
+
+    @Override
+    public Rating find(String laptopID) {
+        return ratingStore.find(laptopID);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Rating> action) {
+        ratingStore.forEach(action);
+    }
+
+    @Override
+    public RatingSketch distribution(String laptopID) {
+        RatingSketch sketch = sketches.get(laptopID);
+        return sketch == null ? null : sketch.copy();
+    }
+
+    private RatingSketch sketch(String laptopID){
+        RatingSketch sketch = sketches.get(laptopID);
+        if(sketch == null){
+            sketch = sketches.computeIfAbsent(laptopID, id -> new RatingSketch());
+        }
+        return sketch;
+    }
+}
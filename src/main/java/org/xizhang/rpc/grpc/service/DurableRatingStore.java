@@ -0,0 +1,424 @@
+package org.xizhang.rpc.grpc.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// durable rating store: every add is appended to a write-ahead log and applied to an
+// in-memory store. the log is buffered and a background thread syncs it every
+// flushIntervalMillis, so a rating never waits for an fsync; a crash loses at most the
+// ratings of the last interval.
+// once snapshotEvery ratings went into the current log the aggregated ratings are written
+// to a snapshot and older logs are deleted, so startup replays a bounded log tail.
+// a snapshot only stops adds for as long as it takes to switch to a new log: each rating
+// keeps its value from before the switch when it is first changed after it, so the
+// snapshot is copied and written while adds go on
+public class DurableRatingStore implements RatingStore, Closeable {
+    private static final Logger logger = Logger.getLogger(DurableRatingStore.class.getName());
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x52415431;
+    private static final int WAL_BUFFER_SIZE = 64 << 10;
+
+    private final ConcurrentMap<String, Cell> data;
+    private final Path directory;
+    private final long snapshotEvery;
+    // adds hold the read lock while they log and apply a rating. a snapshot takes the
+    // write lock to switch to a new log generation, so every rating is either part of the
+    // snapshot or of a newer log
+    private final ReadWriteLock lock;
+    private final Object walLock;
+    private final CRC32 crc;
+    private final ScheduledExecutorService flusher;
+    private long generation;
+    private FileChannel walChannel;
+    private DataOutputStream wal;
+    private long walRecords;
+
+    public DurableRatingStore(Path directory) throws IOException {
+        this(directory, 100, 1_000_000);
+    }
+
+    public DurableRatingStore(Path directory, long flushIntervalMillis, long snapshotEvery) throws IOException {
+        if(flushIntervalMillis < 1 || snapshotEvery < 1){
+            throw new IllegalArgumentException("flushIntervalMillis and snapshotEvery must be at least 1");
+        }
+        this.data = new ConcurrentHashMap<>();
+        this.directory = directory;
+        this.snapshotEvery = snapshotEvery;
+        this.lock = new ReentrantReadWriteLock();
+        this.walLock = new Object();
+        this.crc = new CRC32();
+
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        long count = recover();
+        logger.info("recovered " + count + " rating records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        // folds the replayed logs into a fresh snapshot, new ratings go to a new log
+        snapshot();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rating-wal-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAndSnapshot, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Rating add(String laptopID, double score) {
+        return add(laptopID, new Rating(1, score));
+    }
+
+    // the ratings of a batch are logged as one record
+    @Override
+    public Rating add(String laptopID, double[] scores) {
+        return add(laptopID, Rating.of(scores));
+    }
+
+    private Rating add(String laptopID, Rating rating) {
+        lock.readLock().lock();
+        try{
+            synchronized (walLock){
+                append(laptopID, rating.getCount(), rating.getSum());
+            }
+            return merge(laptopID, rating);
+        }catch (IOException e){
+            throw new IllegalStateException("cannot log rating of laptop " + laptopID, e);
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Rating find(String laptopID) {
+        Cell cell = data.get(laptopID);
+        return cell == null ? null : cell.rating;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Rating> action) {
+        data.forEach((laptopID, cell) -> action.accept(laptopID, cell.rating));
+    }
+
+    // the generation cannot change while the caller holds the read lock, or during recovery
+    private Rating merge(String laptopID, Rating rating){
+        long current = generation;
+        return data.compute(laptopID, (id, cell) -> {
+            if(cell == null){
+                return new Cell(rating, current, null);
+            }
+            Rating added = Rating.add(cell.rating, rating);
+            // the first change in a generation keeps the value the snapshot of that generation needs
+            return new Cell(added, current, cell.generation == current ? cell.snapshot : cell.rating);
+        }).rating;
+    }
+
+    // syncs the pending ratings and closes the log
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try{
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try{
+            synchronized (walLock){
+                closeWal();
+            }
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // record: u16 id length, utf-8 id, u32 count, f64 score sum, u32 crc of the preceding bytes
+    private void append(String laptopID, int count, double sum) throws IOException {
+        if(wal == null){
+            throw new ClosedChannelException();
+        }
+        byte[] id = laptopID.getBytes(StandardCharsets.UTF_8);
+        if(id.length > 0xFFFF){
+            throw new IllegalArgumentException("laptop ID is too long");
+        }
+        ByteBuffer record = ByteBuffer.allocate(2 + id.length + 4 + 8 + 4);
+        record.putShort((short) id.length).put(id).putInt(count).putDouble(sum);
+        crc.reset();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        wal.write(record.array());
+        walRecords++;
+    }
+
+    private void flushAndSnapshot(){
+        try{
+            FileChannel channel;
+            long records;
+            synchronized (walLock){
+                wal.flush();
+                channel = walChannel;
+                records = walRecords;
+            }
+            // adds keep going into the buffer while the log is synced
+            try{
+                channel.force(false);
+            }catch (ClosedChannelException e){
+                // a snapshot switched the log, it synced this one before closing it
+            }
+            if(records >= snapshotEvery){
+                snapshot();
+            }
+        }catch (IOException e){
+            logger.log(Level.SEVERE, "cannot sync rating log", e);
+        }
+    }
+
+    private void snapshot() throws IOException {
+        long next = generation + 1;
+        // syncs most of the old log while adds go on, so the sync under the lock is short
+        FileChannel current;
+        synchronized (walLock){
+            if(wal != null){
+                wal.flush();
+            }
+            current = walChannel;
+        }
+        if(current != null){
+            current.force(false);
+        }
+
+        FileChannel previousChannel;
+        // only the switch stops adds, closing the old log and copying happen after it.
+        // recovery only accepts a torn record at the end of the newest log, so the old
+        // log is complete on disk before the next one exists
+        lock.writeLock().lock();
+        try{
+            synchronized (walLock){
+                if(wal != null){
+                    wal.flush();
+                    walChannel.force(false);
+                }
+                FileChannel nextChannel = FileChannel.open(path(WAL_PREFIX, next, WAL_SUFFIX),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                previousChannel = walChannel;
+                walChannel = nextChannel;
+                wal = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(nextChannel), WAL_BUFFER_SIZE));
+                walRecords = 0;
+                generation = next;
+            }
+        }finally {
+            lock.writeLock().unlock();
+        }
+        if(previousChannel != null){
+            previousChannel.close();
+        }
+
+        // ratings changed since the switch give their value from before it, ratings first
+        // added since the switch are left to the new log
+        Map<String, Rating> ratings = new HashMap<>();
+        data.forEach((laptopID, cell) -> {
+            Rating rating = cell.generation < next ? cell.rating : cell.snapshot;
+            if(rating != null){
+                ratings.put(laptopID, rating);
+            }
+        });
+        writeSnapshot(next, ratings);
+        syncDirectory();
+        // the snapshot covers every older log
+        for(Path path : list()){
+            String name = path.getFileName().toString();
+            if(name.endsWith(".tmp") || generation(path) < next){
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private void closeWal() throws IOException {
+        if(wal != null){
+            wal.flush();
+            walChannel.force(false);
+            walChannel.close();
+            wal = null;
+        }
+    }
+
+    // snapshot: magic, entry count, entries of (id, count, sum), crc of everything before it.
+    // written to a temp file and renamed, so a snapshot file is always complete
+    private void writeSnapshot(long number, Map<String, Rating> ratings) throws IOException {
+        Path snapshot = path(SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX);
+        Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(checked, WAL_BUFFER_SIZE));
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(ratings.size());
+            for(Map.Entry<String, Rating> entry : ratings.entrySet()){
+                output.writeUTF(entry.getKey());
+                output.writeInt(entry.getValue().getCount());
+                output.writeDouble(entry.getValue().getSum());
+            }
+            output.flush();
+            output.writeInt((int) checked.getChecksum().getValue());
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // loads the newest snapshot and replays the logs written after it.
+    // only the end of the newest log can hold a record torn by a crash, it is skipped
+    private long recover() throws IOException {
+        long snapshot = 0;
+        for(Path path : list()){
+            if(path.getFileName().toString().startsWith(SNAPSHOT_PREFIX) && !path.toString().endsWith(".tmp")){
+                snapshot = Math.max(snapshot, generation(path));
+            }
+        }
+        generation = snapshot;
+        if(snapshot > 0){
+            loadSnapshot(path(SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX));
+        }
+
+        final long from = snapshot;
+        List<Path> logs = list().stream()
+                .filter(path -> path.getFileName().toString().startsWith(WAL_PREFIX) && generation(path) >= from)
+                .toList();
+        long count = 0;
+        for (int i = 0; i < logs.size(); i++) {
+            Path path = logs.get(i);
+            generation = Math.max(generation, generation(path));
+            try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), WAL_BUFFER_SIZE))){
+                count += replay(path, input, i == logs.size() - 1);
+            }
+        }
+        return count;
+    }
+
+    private long replay(Path path, DataInputStream input, boolean last) throws IOException {
+        CRC32 checksum = new CRC32();
+        long count = 0;
+        while(true){
+            int length;
+            try{
+                length = input.readUnsignedShort();
+            }catch (EOFException e){
+                return count;
+            }
+            ByteBuffer record = ByteBuffer.allocate(2 + length + 4 + 8);
+            record.putShort((short) length);
+            try{
+                input.readFully(record.array(), 2, length + 4 + 8);
+                int expected = input.readInt();
+                checksum.reset();
+                checksum.update(record.array());
+                if((int) checksum.getValue() != expected){
+                    throw new EOFException("checksum mismatch");
+                }
+            }catch (EOFException e){
+                if(!last){
+                    throw new IOException("corrupted rating log " + path, e);
+                }
+                logger.warning("skipping torn rating record at the end of " + path);
+                return count;
+            }
+            String laptopID = new String(record.array(), 2, length, StandardCharsets.UTF_8);
+            merge(laptopID, new Rating(record.getInt(2 + length), record.getDouble(2 + length + 4)));
+            count++;
+        }
+    }
+
+    private void loadSnapshot(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        if(bytes.length < 12){
+            throw new IOException("corrupted rating snapshot " + path);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, bytes.length - 4);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        if(input.readInt() != SNAPSHOT_MAGIC
+                || ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt() != (int) checksum.getValue()){
+            throw new IOException("corrupted rating snapshot " + path);
+        }
+        int size = input.readInt();
+        for (int i = 0; i < size; i++) {
+            String laptopID = input.readUTF();
+            int count = input.readInt();
+            double sum = input.readDouble();
+            merge(laptopID, new Rating(count, sum));
+        }
+    }
+
+    private List<Path> list() throws IOException {
+        try(Stream<Path> files = Files.list(directory)){
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SNAPSHOT_PREFIX) || name.startsWith(WAL_PREFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private Path path(String prefix, long number, String suffix){
+        return directory.resolve(String.format("%s%020d%s", prefix, number, suffix));
+    }
+
+    private static long generation(Path path){
+        String name = path.getFileName().toString();
+        int start = name.indexOf('-') + 1;
+        return Long.parseLong(name.substring(start, start + 20));
+    }
+
+    private void syncDirectory(){
+        try(FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)){
+            dir.force(true);
+        }catch (IOException e){
+            // not every platform can sync a directory
+        }
+    }
+
+    // a rating with the generation of its last change, and its value from before that
+    // generation (null when it was first added in it)
+    private static class Cell {
+        final Rating rating;
+        final long generation;
+        final Rating snapshot;
+
+        Cell(Rating rating, long generation, Rating snapshot){
+            this.rating = rating;
+            this.generation = generation;
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.xizhang.rpc.grpc.service;
+
+// how LaptopServer runs the calls of its services
+public enum ExecutorMode {
+    // gRPC's default shared cached thread pool
+    CACHED,
+    // a bounded pool, calls queue up once every thread is busy
+    FIXED,
+    // one virtual thread per call, needs a Java 21 runtime
+    VIRTUAL,
+    // non blocking methods run on the transport threads, methods that do store or
+    // disk I/O are handed to a cached pool
+    DIRECT
+}
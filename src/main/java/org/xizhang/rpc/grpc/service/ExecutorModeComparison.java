@@ -0,0 +1,63 @@
+package org.xizhang.rpc.grpc.service;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.ServerBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// runs the same mixed load against a LaptopServer in every ExecutorMode and prints the
+// p50/p99 and throughput of each: an open loop at a fixed rate, then a closed loop of
+// unpaced workers. every mode gets a fresh server on a free local port, plaintext, and
+// fresh stores, so one run does not warm the next one's data
+public class ExecutorModeComparison {
+    private static final int LAPTOPS = 1000;
+    private static final int IMAGE_SIZE = 64 << 10;
+    private static final int MAX_OUTSTANDING = 10_000;
+
+    // [qps] [workers] [seconds] [create:search:upload:rate] [threads]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double qps = args.length > 0 ? Double.parseDouble(args[0]) : 2000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        Duration duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 30);
+        int[] weights = {1, 4, 1, 4};
+        if(args.length > 3){
+            String[] parts = args[3].split(":");
+            if(parts.length != weights.length){
+                throw new IllegalArgumentException("invalid mix " + args[3] + ", expected create:search:upload:rate");
+            }
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = Integer.parseInt(parts[i]);
+            }
+        }
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 2 * Runtime.getRuntime().availableProcessors();
+        Duration warmup = Duration.ofSeconds(10);
+
+        for(ExecutorMode executorMode : ExecutorMode.values()){
+            if(executorMode == ExecutorMode.VIRTUAL && Runtime.version().feature() < 21){
+                System.out.println(executorMode + ": skipped, virtual threads need a Java 21 runtime");
+                continue;
+            }
+            LaptopServer server = new LaptopServer(ServerBuilder.forPort(0), 0, new InMemoryLaptopStore(),
+                    new DiskImageStore(Files.createTempDirectory("laptop-img").toString(), true),
+                    new InMemoryRatingStore(), executorMode, threads);
+            server.start();
+            ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                    .usePlaintext()
+                    .build();
+            try{
+                LaptopLoadGenerator loadGenerator = new LaptopLoadGenerator(channel, weights, MAX_OUTSTANDING);
+                loadGenerator.prepare(LAPTOPS, IMAGE_SIZE);
+                System.out.println("== " + executorMode + (executorMode == ExecutorMode.FIXED ? ", " + threads + " threads" : ""));
+                loadGenerator.runOpenLoop(qps, warmup, duration).print(System.out);
+                loadGenerator.runClosedLoop(workers, 0, warmup, duration).print(System.out);
+            }finally {
+                channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+                server.stop();
+            }
+        }
+    }
+}
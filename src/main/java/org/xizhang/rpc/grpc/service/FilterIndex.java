@@ -0,0 +1,79 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+// standing filters indexed by their thresholds, the reverse of LaptopIndex: a laptop matches
+// the filters whose max price is at least its price, and whose min cores, ghz and ram are at
+// most its own. only the smallest of those ranges is walked and checked with isQualified, so
+// a laptop that few filters want does not visit every filter
+class FilterIndex<T> {
+    private final SortedIndex<Double, T> maxPrice;
+    private final SortedIndex<Integer, T> minCores;
+    private final SortedIndex<Double, T> minGhz;
+    private final SortedIndex<Long, T> minRam;
+    private final ConcurrentMap<T, Filter> filters;
+
+    FilterIndex(){
+        maxPrice = new SortedIndex<>();
+        minCores = new SortedIndex<>();
+        minGhz = new SortedIndex<>();
+        minRam = new SortedIndex<>();
+        filters = new ConcurrentHashMap<>();
+    }
+
+    void add(Filter filter, T value){
+        filters.put(value, filter);
+        maxPrice.add(filter.getMaxPriceUsd(), value);
+        minCores.add(filter.getMinCpuCores(), value);
+        minGhz.add(filter.getMinCpuGhz(), value);
+        minRam.add(InMemoryLaptopStore.toBit(filter.getMinRam()), value);
+    }
+
+    // returns false if the value was not in the index
+    boolean remove(T value){
+        Filter filter = filters.remove(value);
+        if(filter == null){
+            return false;
+        }
+        maxPrice.remove(filter.getMaxPriceUsd(), value);
+        minCores.remove(filter.getMinCpuCores(), value);
+        minGhz.remove(filter.getMinCpuGhz(), value);
+        minRam.remove(InMemoryLaptopStore.toBit(filter.getMinRam()), value);
+        return true;
+    }
+
+    // calls action with every value whose filter the laptop matches
+    void forEachMatch(Laptop laptop, Consumer<T> action){
+        int n = filters.size();
+        if(n == 0){
+            return;
+        }
+        Iterable<T> candidates = SortedIndex.smallest(List.of(
+                maxPrice.atLeast(laptop.getPriceUsd()),
+                minCores.atMost(laptop.getCpu().getNumberCores()),
+                minGhz.atMost(laptop.getCpu().getMinGhz()),
+                minRam.atMost(InMemoryLaptopStore.toBit(laptop.getRam()))
+        ), n);
+        if(candidates == null){
+            // values were added meanwhile and every range grew past the count
+            candidates = filters.keySet();
+        }
+        for(T value : candidates){
+            // a value removed meanwhile has no filter left
+            Filter filter = filters.get(value);
+            if(filter != null && InMemoryLaptopStore.isQualified(filter, laptop)){
+                action.accept(value);
+            }
+        }
+    }
+
+    int size(){
+        return filters.size();
+    }
+}
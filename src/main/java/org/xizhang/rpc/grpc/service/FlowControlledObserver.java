@@ -0,0 +1,63 @@
+package org.xizhang.rpc.grpc.service;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+// wraps a server response stream so that a producer running outside the call's
+// executor blocks while the transport has no outbound capacity, instead of letting
+// gRPC buffer every message on the heap.
+// must be created before the service method returns, because the ready and
+// cancel handlers can only be registered during the initial call
+public class FlowControlledObserver<T> {
+    private final ServerCallStreamObserver<T> observer;
+    private final Object lock = new Object();
+
+    public FlowControlledObserver(ServerCallStreamObserver<T> observer){
+        this.observer = observer;
+        observer.setOnReadyHandler(this::signal);
+        observer.setOnCancelHandler(this::signal);
+    }
+
+    public void onNext(T value){
+        synchronized (lock){
+            while(!observer.isReady() && !observer.isCancelled()){
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Status.CANCELLED.withDescription("interrupted while waiting for the client").asRuntimeException();
+                }
+            }
+            if(observer.isCancelled()){
+                throw Status.CANCELLED.withDescription("request is cancelled").asRuntimeException();
+            }
+            observer.onNext(value);
+        }
+    }
+
+    public void onError(Throwable t){
+        synchronized (lock){
+            if(!observer.isCancelled()){
+                observer.onError(t);
+            }
+        }
+    }
+
+    public void onCompleted(){
+        synchronized (lock){
+            if(!observer.isCancelled()){
+                observer.onCompleted();
+            }
+        }
+    }
+
+    public boolean isCancelled(){
+        return observer.isCancelled();
+    }
+
+    private void signal(){
+        synchronized (lock){
+            lock.notifyAll();
+        }
+    }
+}
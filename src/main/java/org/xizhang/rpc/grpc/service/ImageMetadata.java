@@ -4,11 +4,18 @@ public class ImageMetadata {
     private String laptopID;
     private String type;
     private String path;
+    private String digest;
 
     public  ImageMetadata(String laptopID, String type, String path){
+        this(laptopID, type, path, null);
+    }
+
+    // digest is the SHA-256 of the content for content addressed images, null otherwise
+    public  ImageMetadata(String laptopID, String type, String path, String digest){
         this.laptopID = laptopID;
         this.type = type;
         this.path = path;
+        this.digest = digest;
     }
 
     public String getLaptopID() {
@@ -22,4 +29,8 @@ public class ImageMetadata {
     public String getPath() {
         return path;
     }
+
+    public String getDigest() {
+        return digest;
+    }
 }
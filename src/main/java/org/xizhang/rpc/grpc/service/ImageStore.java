@@ -1,8 +1,14 @@
 package org.xizhang.rpc.grpc.service;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 public interface ImageStore {
-    String save(String laptopID, String imageType, ByteArrayOutputStream imageData) throws IOException;
+    // opens a new image for writing; it only becomes visible once the writer is committed
+    ImageWriter create(String laptopID, String imageType) throws IOException;
+
+    // returns null when there is no image with this ID
+    ImageMetadata find(String imageID);
+
+    // returns false when there is no image with this ID
+    boolean delete(String imageID) throws IOException;
 }
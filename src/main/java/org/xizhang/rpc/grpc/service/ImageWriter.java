@@ -0,0 +1,18 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+
+// an image being uploaded, written chunk by chunk as the chunks arrive
+public interface ImageWriter {
+    void write(ByteString chunk) throws IOException;
+
+    long size();
+
+    // makes the image visible and returns its ID
+    String commit() throws IOException;
+
+    // discards everything written so far
+    void abort();
+}
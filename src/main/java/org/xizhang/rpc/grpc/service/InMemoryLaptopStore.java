@@ -1,5 +1,6 @@
 package org.xizhang.rpc.grpc.service;
 
+import com.google.protobuf.ByteString;
 import com.xizhang.rpc.grpc.pcbook.pb.Filter;
 import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
 import com.xizhang.rpc.grpc.pcbook.pb.Memory;
@@ -7,61 +8,242 @@ import io.grpc.Context;
 
 import java.nio.file.FileAlreadyExistsException;
 import java.rmi.AlreadyBoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Logger;
 
 public class InMemoryLaptopStore implements LaptopStore{
     private static final Logger logger = Logger.getLogger(InMemoryLaptopStore.class.getName());
+    // an index is only used when it narrows the search to less than 1/8 of the rows
+    private static final int INDEX_SELECTIVITY = 8;
+    // below this many rows per partition a parallel scan costs more than it saves
+    private static final int MIN_PARTITION_ROWS = 16384;
+    // how many filters keep their sorted index hits for the next page
+    private static final int PAGED_FILTERS = 16;
     private ConcurrentMap<String, Laptop> data;
+    private LaptopIndex index;
+    private LaptopColumns columns;
+    private ForkJoinPool pool;
+    private int partitions;
+    private Map<ByteString, PagedRows> pagedRows;
 
     public InMemoryLaptopStore(){
+        this(ForkJoinPool.commonPool(), 1);
+    }
+
+    // column scans are split into up to `partitions` ranges evaluated on `pool`
+    public InMemoryLaptopStore(ForkJoinPool pool, int partitions){
+        if(partitions < 1){
+            throw new IllegalArgumentException("partitions must be at least 1");
+        }
         data = new ConcurrentHashMap<>(0);//initiate the capacity to be 0
+        index = new LaptopIndex();
+        columns = new LaptopColumns();
+        this.pool = pool;
+        this.partitions = partitions;
+        pagedRows = Collections.synchronizedMap(new LinkedHashMap<>(PAGED_FILTERS, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteString, PagedRows> eldest) {
+                return size() > PAGED_FILTERS;
+            }
+        });
     }
 
     @Override
     public void save(Laptop laptop)  {
-        if(data.containsKey(laptop.getId())){
+        // protobuf messages are immutable, the store keeps the caller's instance
+        if(data.putIfAbsent(laptop.getId(), laptop) != null){
             throw new AlreadyExistsException("LAPTOP id has already exists");
         }
-        //deep copy
-        Laptop laptopcopy = laptop.toBuilder().build();
-        data.put(laptopcopy.getId(), laptopcopy);
+        // serialized once here so that search hits can be written without re-encoding.
+        // the row is indexed before it is published: a reader that sees a row in the
+        // columns finds it in the index too
+        columns.append(laptop, laptop.toByteString(), row -> index.add(laptop, row));
     }
 
+    // claims the IDs one by one, then appends the new laptops to the columns in one step
+    // and indexes them in bulk before they are published
     @Override
-    public Laptop find(String id) {
-        if(!data.containsKey(id)){
-            return null;
+    public BitSet saveAll(List<Laptop> laptops) {
+        BitSet existing = new BitSet();
+        List<Laptop> added = new ArrayList<>(laptops.size());
+        for (int i = 0; i < laptops.size(); i++) {
+            Laptop laptop = laptops.get(i);
+            if(data.putIfAbsent(laptop.getId(), laptop) != null){
+                existing.set(i);
+            }else{
+                added.add(laptop);
+            }
         }
-        //deep copy
-        Laptop laptopcopy = data.get(id).toBuilder().build();
-        return laptopcopy;
+        if(added.isEmpty()){
+            return existing;
+        }
+        ByteString[] serialized = new ByteString[added.size()];
+        for (int i = 0; i < serialized.length; i++) {
+            serialized[i] = added.get(i).toByteString();
+        }
+        columns.appendAll(added, serialized, first -> index.addAll(added, first));
+        return existing;
+    }
+
+    @Override
+    public Laptop find(String id) {
+        return data.get(id);
     }
 
     @Override
     public void search(Context ctx, Filter filter, LaptopStream stream) {
-        for(Map.Entry<String, Laptop> entry : data.entrySet()){
+        LaptopColumns.Snapshot snapshot = columns.snapshot();
+        Iterable<Integer> candidates = index.plan(filter, snapshot.size() / INDEX_SELECTIVITY);
+        if(candidates == null){
+            scan(ctx, filter, snapshot, stream);
+            return;
+        }
+
+        // only the candidates of the most selective index are visited
+        for(int row : candidates){
             if(ctx.isCancelled()){
                 logger.info("context is cancelled");
                 return;
             }
-            try {
-                TimeUnit.SECONDS.sleep(1);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+
+            // rows saved after the snapshot was taken are skipped
+            if(row < snapshot.size() && snapshot.matches(row, filter)){
+                stream.send(snapshot.laptop(row), snapshot.serialized(row));
+            }
+        }
+    }
+
+    @Override
+    public long search(Context ctx, Filter filter, long after, int limit, LaptopStream stream) {
+        // positions are column rows, which never move because rows are append only
+        LaptopColumns.Snapshot snapshot = columns.snapshot();
+        int size = snapshot.size();
+        int from = after < 0 ? 0 : (int) Math.min(after, size - 1L) + 1;
+        Iterable<Integer> candidates = index.plan(filter, size / INDEX_SELECTIVITY);
+        if(candidates == null){
+            return snapshot.scanPage(ctx, filter, from, limit, stream);
+        }
+
+        // index entries are ordered by value, pages have to follow row order. the matching
+        // rows are sorted once per filter and kept, later pages binary search their start
+        PagedRows rows = pagedRows(filter, snapshot, candidates);
+        int end = upperBound(rows, size);
+        for (int i = upperBound(rows, from - 1), sent = 0; i < end; i++, sent++) {
+            if(ctx.isCancelled()){
+                logger.info("context is cancelled");
+                return -1;
+            }
+            if(sent == limit){
+                return rows.rows[i - 1];
+            }
+            stream.send(snapshot.laptop(rows.rows[i]), snapshot.serialized(rows.rows[i]));
+        }
+        return -1;
+    }
+
+    // the sorted matching rows below the snapshot's size, from the cache when it has them.
+    // rows appended since they were cached are checked and added, rows never move
+    private PagedRows pagedRows(Filter filter, LaptopColumns.Snapshot snapshot, Iterable<Integer> candidates){
+        ByteString key = filter.toByteString();
+        int size = snapshot.size();
+        PagedRows cached = pagedRows.get(key);
+        if(cached != null && cached.size >= size){
+            return cached;
+        }
+
+        int[] rows;
+        int n = 0;
+        if(cached == null){
+            rows = new int[16];
+            for(int row : candidates){
+                if(row < size && snapshot.matches(row, filter)){
+                    if(n == rows.length){
+                        rows = Arrays.copyOf(rows, n << 1);
+                    }
+                    rows[n++] = row;
+                }
+            }
+            Arrays.sort(rows, 0, n);
+        }else{
+            rows = Arrays.copyOf(cached.rows, Math.max(16, cached.count + (cached.count >> 1)));
+            n = cached.count;
+            for (int row = cached.size; row < size; row++) {
+                if(snapshot.matches(row, filter)){
+                    if(n == rows.length){
+                        rows = Arrays.copyOf(rows, n << 1);
+                    }
+                    rows[n++] = row;
+                }
+            }
+        }
+        PagedRows paged = new PagedRows(rows, n, size);
+        pagedRows.put(key, paged);
+        return paged;
+    }
+
+    // index of the first cached row above row
+    private static int upperBound(PagedRows rows, int row){
+        int i = Arrays.binarySearch(rows.rows, 0, rows.count, row);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    private void scan(Context ctx, Filter filter, LaptopColumns.Snapshot snapshot, LaptopStream stream) {
+        int size = snapshot.size();
+        int n = Math.min(partitions, size / MIN_PARTITION_ROWS);
+        if(n <= 1){
+            if(!snapshot.scan(ctx, filter, 0, size, stream)){
+                logger.info("context is cancelled");
             }
+            return;
+        }
+
+        // partitions only collect their hits, the caller's thread sends them partition by
+        // partition as they complete, so a slow stream never parks a pool worker
+        List<ForkJoinTask<LaptopHits>> tasks = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int from = (int) ((long) size * i / n);
+            int to = (int) ((long) size * (i + 1) / n);
+            tasks.add(pool.submit(() -> {
+                LaptopHits hits = new LaptopHits();
+                snapshot.scan(ctx, filter, from, to, hits);
+                return hits;
+            }));
+        }
 
-            Laptop laptop = entry.getValue();
-            if(isQualified(filter, laptop)){
-                stream.send(laptop.toBuilder().build());
+        // wait for every partition before returning, even if one of them failed
+        RuntimeException failure = null;
+        boolean completed = true;
+        for(ForkJoinTask<LaptopHits> task : tasks){
+            try{
+                LaptopHits hits = task.join();
+                if(failure == null && completed){
+                    completed = hits.replay(ctx, stream);
+                }
+            }catch (RuntimeException e){
+                if(failure == null){
+                    failure = e;
+                }
             }
         }
+        if(failure != null){
+            throw failure;
+        }
+        if(!completed){
+            logger.info("context is cancelled");
+        }
     }
 
-    private boolean isQualified(Filter filter, Laptop laptop) {
+    static boolean isQualified(Filter filter, Laptop laptop) {
         if(laptop.getPriceUsd() > filter.getMaxPriceUsd()){
             return false;
         }
@@ -77,7 +259,7 @@ public class InMemoryLaptopStore implements LaptopStore{
         return true;
     }
 
-    private long toBit(Memory memory) {
+    static long toBit(Memory memory) {
         long value = memory.getValue();
         switch (memory.getUnit()){
             case BIT :
@@ -96,4 +278,17 @@ public class InMemoryLaptopStore implements LaptopStore{
                 return 0;
         }
     }
+
+    // the matching rows of a filter among the first size rows, in row order
+    private static class PagedRows {
+        final int[] rows;
+        final int count;
+        final int size;
+
+        PagedRows(int[] rows, int count, int size){
+            this.rows = rows;
+            this.count = count;
+            this.size = size;
+        }
+    }
 }
@@ -2,6 +2,7 @@ package org.xizhang.rpc.grpc.service;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 
 public class InMemoryRatingStore implements RatingStore{
     private ConcurrentMap<String, Rating> data;
@@ -15,5 +16,18 @@ public class InMemoryRatingStore implements RatingStore{
         return data.merge(laptopID, new Rating(1, score), Rating::add);
     }
 
+    @Override
+    public Rating add(String laptopID, double[] scores) {
+        return data.merge(laptopID, Rating.of(scores), Rating::add);
+    }
 
+    @Override
+    public Rating find(String laptopID) {
+        return data.get(laptopID);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Rating> action) {
+        data.forEach(action);
+    }
 }
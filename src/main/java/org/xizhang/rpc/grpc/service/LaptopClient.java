@@ -8,6 +8,8 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.netty.handler.ssl.SslContext;
 import org.xizhang.rpc.grpc.sample.Generator;
@@ -15,10 +17,16 @@ import org.xizhang.rpc.grpc.sample.Generator;
 import javax.net.ssl.SSLException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Duration;
 import java.util.Iterator;
 import java.util.Scanner;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +39,9 @@ public class LaptopClient {
 
     private LaptopServiceGrpc.LaptopServiceStub asyncStub;
 
+    // per message lines (search hits, image chunks, ratings) go here instead of the logger
+    private AccessLog accessLog = AccessLog.NONE;
+
     public LaptopClient(String host, int port){
         try{
             channel = ManagedChannelBuilder.forAddress(host, port)
@@ -65,6 +76,10 @@ public class LaptopClient {
 
     }
 
+    public void setAccessLog(AccessLog accessLog){
+        this.accessLog = accessLog;
+    }
+
     public void shutdown() throws InterruptedException {
 
         channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
@@ -74,10 +89,8 @@ public class LaptopClient {
         CreateLaptopRequest request = CreateLaptopRequest.newBuilder().setLaptop(laptop).build();
         CreateLaptopResponse response; // = CreateLaptopResponse.getDefaultInstance();
         try {
-            System.out.println(request);
             response = blockingStub.createLaptop(request);
 //            response = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).createLaptop(request);
-            System.out.println(response);
         }catch (StatusRuntimeException statusRuntimeException){
             if(statusRuntimeException.getStatus().getCode() == Status.Code.ALREADY_EXISTS){
                 logger.info("laptop id already exists");
@@ -95,6 +108,52 @@ public class LaptopClient {
 
     }
 
+    // streams all laptops in one call. laptops are only taken from the iterator while the
+    // call can send, so a slow server slows the import down instead of queueing it in memory
+    public CreateLaptopsResponse createLaptops(Iterator<Laptop> laptops) throws InterruptedException {
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        AtomicReference<CreateLaptopsResponse> result = new AtomicReference<>();
+        asyncStub.createLaptops(new ClientResponseObserver<CreateLaptopRequest, CreateLaptopsResponse>() {
+            private boolean sent;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<CreateLaptopRequest> requestStream) {
+                requestStream.setOnReadyHandler(() -> {
+                    while(!sent && requestStream.isReady()){
+                        if(!laptops.hasNext()){
+                            sent = true;
+                            requestStream.onCompleted();
+                            return;
+                        }
+                        requestStream.onNext(CreateLaptopRequest.newBuilder().setLaptop(laptops.next()).build());
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(CreateLaptopsResponse response) {
+                result.set(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.SEVERE, "create laptops failed : " + t.getMessage());
+                finishLatch.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                CreateLaptopsResponse response = result.get();
+                logger.info("created " + response.getCreatedCount() + " laptops, "
+                        + response.getAlreadyExistsCount() + " already exist, "
+                        + response.getInvalidCount() + " invalid");
+                finishLatch.countDown();
+            }
+        });
+        finishLatch.await();
+        return result.get();
+    }
+
     private void searchLaptop(Filter filter) {
         logger.info("seatch started");
 
@@ -105,7 +164,7 @@ public class LaptopClient {
                 SearchLaptopResponse response = responseIterator.next();
                 Laptop laptop = response.getLaptop();
 
-                logger.info("found : " + laptop.getId());
+                accessLog.log(AccessLog.Event.SEARCH_HIT, laptop.getId(), 0);
             }
             logger.info("search completed");
         }catch (Exception e){
@@ -114,6 +173,36 @@ public class LaptopClient {
         }
     }
 
+    // fetches the matches page by page, each call returns at most pageSize laptops
+    private void searchLaptopPages(Filter filter, int pageSize) {
+        logger.info("paged search started");
+
+        String pageToken = "";
+        try{
+            do{
+                SearchLaptopBatchRequest request = SearchLaptopBatchRequest.newBuilder()
+                        .setFilter(filter)
+                        .setPageSize(pageSize)
+                        .setPageToken(pageToken)
+                        .build();
+                Iterator<SearchLaptopBatchResponse> responseIterator = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).searchLaptopBatch(request);
+                pageToken = "";
+                while (responseIterator.hasNext()){
+                    SearchLaptopBatchResponse response = responseIterator.next();
+                    for(Laptop laptop : response.getLaptopsList()){
+                        accessLog.log(AccessLog.Event.SEARCH_HIT, laptop.getId(), 0);
+                    }
+                    if(!response.getNextPageToken().isEmpty()){
+                        pageToken = response.getNextPageToken();
+                    }
+                }
+            }while(!pageToken.isEmpty());
+            logger.info("paged search completed");
+        }catch (Exception e){
+            logger.log(Level.SEVERE, "request failed " + e.getMessage());
+        }
+    }
+
     public void uploadImage(String laptopID, String imagePath) throws InterruptedException {
         final CountDownLatch finishLatch = new CountDownLatch(1); // we only need to wait the response thread
         StreamObserver<UploadImageRequest> requestObserver = asyncStub.withDeadlineAfter(5, TimeUnit.SECONDS)
@@ -166,7 +255,7 @@ public class LaptopClient {
                         .setChunkData(ByteString.copyFrom(buffer, 0, num))
                         .build();
                 requestObserver.onNext(request);
-                logger.log(Level.SEVERE, "chunk data was send with size " + num );
+                accessLog.log(AccessLog.Event.IMAGE_CHUNK, laptopID, num);
             }
         }catch (Exception e){
             logger.log(Level.SEVERE, "unexpected error" + e.getMessage());
@@ -181,16 +270,36 @@ public class LaptopClient {
         }
     }
 
+    // writes the image to outputPath, offset and length select a byte range (length 0 reads to the end)
+    public void downloadImage(String imageID, long offset, long length, String outputPath) {
+        DownloadImageRequest request = DownloadImageRequest.newBuilder()
+                .setImageId(imageID)
+                .setOffset(offset)
+                .setLength(length)
+                .build();
+        try(FileOutputStream fileOutputStream = new FileOutputStream(outputPath)){
+            Iterator<DownloadImageResponse> responseIterator = blockingStub.withDeadlineAfter(1, TimeUnit.MINUTES).downloadImage(request);
+            while (responseIterator.hasNext()){
+                DownloadImageResponse response = responseIterator.next();
+                if(response.getDataCase() == DownloadImageResponse.DataCase.INFO){
+                    logger.info("receive image info: " + response.getInfo());
+                    continue;
+                }
+                response.getChunkData().writeTo(fileOutputStream);
+            }
+            logger.info("image downloaded to " + outputPath);
+        }catch (Exception e){
+            logger.log(Level.SEVERE, "download failed " + e.getMessage());
+        }
+    }
+
     public void rateLaptop(String[] laptopIDs, double[] scores) throws InterruptedException {
         CountDownLatch finishLatch = new CountDownLatch(1);
         StreamObserver<RateLaptopRequest> requestObserver = asyncStub.withDeadlineAfter(5, TimeUnit.SECONDS)
                 .rateLaptop(new StreamObserver<RateLaptopResponse>() {
                     @Override
                     public void onNext(RateLaptopResponse response) {
-                        logger.info("laptop rated : id = " + response.getLaptopId() +
-                                " count " +
-                                response.getRatedCount() +
-                                ", average = " + response.getAverageScore());
+                        accessLog.log(AccessLog.Event.RATE, response.getLaptopId(), response.getAverageScore());
                     }
 
                     @Override
@@ -212,7 +321,6 @@ public class LaptopClient {
                         .setScore(scores[cnt])
                         .build();
                 requestObserver.onNext(request);
-                logger.info("sent rate-laptop request: id = " + request.getLaptopId() + ", score = " + request.getScore());
             }
         }catch (Exception e){
             logger.log(Level.SEVERE, "unexpected error" + e.getMessage());
@@ -290,13 +398,56 @@ public class LaptopClient {
                 .build();
     }
 
-    public static void main(String[] args) throws InterruptedException, SSLException {
+    // load open <qps> <seconds> [create:search:upload:rate]
+    // load closed <workers> <seconds> [create:search:upload:rate] [qps]
+    public static void testLoad(LaptopClient client, String[] args) throws InterruptedException {
+        boolean open = args[1].equals("open");
+        double rateOrWorkers = Double.parseDouble(args[2]);
+        Duration duration = Duration.ofSeconds(Long.parseLong(args[3]));
+        int[] weights = {1, 4, 1, 4};
+        if(args.length > 4){
+            String[] parts = args[4].split(":");
+            if(parts.length != weights.length){
+                throw new IllegalArgumentException("invalid mix " + args[4] + ", expected create:search:upload:rate");
+            }
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = Integer.parseInt(parts[i]);
+            }
+        }
+
+        LaptopLoadGenerator loadGenerator = new LaptopLoadGenerator(client.channel, weights, 10_000);
+        loadGenerator.prepare(1000, 64 << 10);
+        LaptopLoadGenerator.Report report = open
+                ? loadGenerator.runOpenLoop(rateOrWorkers, Duration.ofSeconds(10), duration)
+                : loadGenerator.runClosedLoop((int) rateOrWorkers, args.length > 5 ? Double.parseDouble(args[5]) : 0,
+                        Duration.ofSeconds(10), duration);
+        report.print(System.out);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
         SslContext sslContext = LaptopClient.loadTLSCredentials();
 
         LaptopClient client = new LaptopClient("0.0.0.0", 8080, sslContext);
         Generator generator = new Generator();
+        // the access log is closed with the client, stdout must stay open for the rest of main.
+        // one line per search hit and image chunk would swamp the console, those are sampled
+        Writer stdout = new OutputStreamWriter(System.out){
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        AccessLog accessLog = new AccessLog(stdout, 1024)
+                .sample(AccessLog.Event.SEARCH_HIT, 100)
+                .sample(AccessLog.Event.IMAGE_CHUNK, 100);
+        client.setAccessLog(accessLog);
 
         try{
+            if(args.length > 3 && args[0].equals("load")){
+                testLoad(client, args);
+                return;
+            }
+
 //            test create and search laptops
 //            for(int i = 0; i < 10; i++){
 //                Laptop laptop = generator.NewLaptop();
@@ -325,6 +476,7 @@ public class LaptopClient {
 
         }finally {
             client.shutdown();
+            accessLog.close();
         }
     }
 }
@@ -0,0 +1,192 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import io.grpc.Context;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+// struct-of-arrays copy of the filterable laptop fields, one row per saved laptop,
+// together with the laptop and its serialized wire bytes.
+// rows are append only: a published row is never written again, so readers can scan
+// a snapshot without locking while save keeps appending
+public class LaptopColumns {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int CANCEL_CHECK_INTERVAL = 4096;
+
+    private double[] price;
+    private int[] cores;
+    private double[] ghz;
+    private long[] ram;
+    private Laptop[] laptops;
+    private ByteString[] serialized;
+    private volatile Snapshot snapshot;
+
+    public LaptopColumns(){
+        price = new double[INITIAL_CAPACITY];
+        cores = new int[INITIAL_CAPACITY];
+        ghz = new double[INITIAL_CAPACITY];
+        ram = new long[INITIAL_CAPACITY];
+        laptops = new Laptop[INITIAL_CAPACITY];
+        serialized = new ByteString[INITIAL_CAPACITY];
+        snapshot = new Snapshot(price, cores, ghz, ram, laptops, serialized, 0);
+    }
+
+    // appends a row and returns its row number. beforePublish gets the row number once the
+    // row is written and before readers can see it, so that what it records (an index
+    // entry) is there for every published row
+    public synchronized int append(Laptop laptop, ByteString bytes, IntConsumer beforePublish){
+        int row = snapshot.size;
+        if(row == laptops.length){
+            int capacity = row << 1;
+            price = Arrays.copyOf(price, capacity);
+            cores = Arrays.copyOf(cores, capacity);
+            ghz = Arrays.copyOf(ghz, capacity);
+            ram = Arrays.copyOf(ram, capacity);
+            laptops = Arrays.copyOf(laptops, capacity);
+            serialized = Arrays.copyOf(serialized, capacity);
+        }
+        price[row] = laptop.getPriceUsd();
+        cores[row] = laptop.getCpu().getNumberCores();
+        ghz[row] = laptop.getCpu().getMinGhz();
+        ram[row] = InMemoryLaptopStore.toBit(laptop.getRam());
+        laptops[row] = laptop;
+        serialized[row] = bytes;
+        beforePublish.accept(row);
+        // volatile write publishes the new row to readers
+        snapshot = new Snapshot(price, cores, ghz, ram, laptops, serialized, row + 1);
+        return row;
+    }
+
+    // appends the rows of a batch under one lock and publishes them together,
+    // returns the row number of the first one. beforePublish gets it as in append
+    public synchronized int appendAll(List<Laptop> batch, ByteString[] bytes, IntConsumer beforePublish){
+        int first = snapshot.size;
+        int size = first + batch.size();
+        if(size > laptops.length){
+            int capacity = Math.max(size, laptops.length << 1);
+            price = Arrays.copyOf(price, capacity);
+            cores = Arrays.copyOf(cores, capacity);
+            ghz = Arrays.copyOf(ghz, capacity);
+            ram = Arrays.copyOf(ram, capacity);
+            laptops = Arrays.copyOf(laptops, capacity);
+            serialized = Arrays.copyOf(serialized, capacity);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Laptop laptop = batch.get(i);
+            int row = first + i;
+            price[row] = laptop.getPriceUsd();
+            cores[row] = laptop.getCpu().getNumberCores();
+            ghz[row] = laptop.getCpu().getMinGhz();
+            ram[row] = InMemoryLaptopStore.toBit(laptop.getRam());
+            laptops[row] = laptop;
+            serialized[row] = bytes[i];
+        }
+        beforePublish.accept(first);
+        snapshot = new Snapshot(price, cores, ghz, ram, laptops, serialized, size);
+        return first;
+    }
+
+    public Snapshot snapshot(){
+        return snapshot;
+    }
+
+    public static class Snapshot {
+        private final double[] price;
+        private final int[] cores;
+        private final double[] ghz;
+        private final long[] ram;
+        private final Laptop[] laptops;
+        private final ByteString[] serialized;
+        private final int size;
+
+        private Snapshot(double[] price, int[] cores, double[] ghz, long[] ram, Laptop[] laptops,
+                         ByteString[] serialized, int size){
+            this.price = price;
+            this.cores = cores;
+            this.ghz = ghz;
+            this.ram = ram;
+            this.laptops = laptops;
+            this.serialized = serialized;
+            this.size = size;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public Laptop laptop(int row){
+            return laptops[row];
+        }
+
+        public ByteString serialized(int row){
+            return serialized[row];
+        }
+
+        // same predicates as InMemoryLaptopStore.isQualified, evaluated on the columns
+        public boolean matches(int row, Filter filter){
+            return matches(row, filter.getMaxPriceUsd(), filter.getMinCpuCores(), filter.getMinCpuGhz(),
+                    InMemoryLaptopStore.toBit(filter.getMinRam()));
+        }
+
+        private boolean matches(int row, double maxPrice, int minCores, double minGhz, long minRam){
+            // non short-circuit & keeps the loop free of data dependent branches
+            return !(price[row] > maxPrice)
+                    & !(cores[row] < minCores)
+                    & !(ghz[row] < minGhz)
+                    & !(ram[row] < minRam);
+        }
+
+        // scans rows [from, to) and only dereferences the laptops that qualify.
+        // returns false when the context got cancelled
+        public boolean scan(Context ctx, Filter filter, int from, int to, LaptopStream stream){
+            double maxPrice = filter.getMaxPriceUsd();
+            int minCores = filter.getMinCpuCores();
+            double minGhz = filter.getMinCpuGhz();
+            long minRam = InMemoryLaptopStore.toBit(filter.getMinRam());
+            for (int start = from; start < to; start += CANCEL_CHECK_INTERVAL) {
+                if(ctx.isCancelled()){
+                    return false;
+                }
+                int end = Math.min(to, start + CANCEL_CHECK_INTERVAL);
+                for (int row = start; row < end; row++) {
+                    if(matches(row, maxPrice, minCores, minGhz, minRam)){
+                        stream.send(laptops[row], serialized[row]);
+                    }
+                }
+            }
+            return true;
+        }
+
+        // sends at most limit hits from rows [from, size) in row order. returns the row of the
+        // last hit sent when more rows qualify, -1 when the scan ran out of rows or got cancelled
+        public int scanPage(Context ctx, Filter filter, int from, int limit, LaptopStream stream){
+            double maxPrice = filter.getMaxPriceUsd();
+            int minCores = filter.getMinCpuCores();
+            double minGhz = filter.getMinCpuGhz();
+            long minRam = InMemoryLaptopStore.toBit(filter.getMinRam());
+            int sent = 0;
+            int last = -1;
+            for (int start = from; start < size; start += CANCEL_CHECK_INTERVAL) {
+                if(ctx.isCancelled()){
+                    return -1;
+                }
+                int end = Math.min(size, start + CANCEL_CHECK_INTERVAL);
+                for (int row = start; row < end; row++) {
+                    if(matches(row, maxPrice, minCores, minGhz, minRam)){
+                        if(sent == limit){
+                            return last;
+                        }
+                        stream.send(laptops[row], serialized[row]);
+                        sent++;
+                        last = row;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import io.grpc.Context;
+
+import java.util.Arrays;
+
+// search hits of one partition or shard, collected by a pool task so that the task never
+// waits on the caller's stream. the caller sends them afterwards on its own thread, where
+// blocking on a slow client only holds that thread. holds references to the laptops and
+// bytes the store keeps anyway
+class LaptopHits implements LaptopStream {
+    private Laptop[] laptops;
+    private ByteString[] serialized;
+    private int size;
+
+    LaptopHits(){
+        laptops = new Laptop[16];
+        serialized = new ByteString[16];
+    }
+
+    @Override
+    public void send(Laptop laptop) {
+        send(laptop, null);
+    }
+
+    @Override
+    public void send(Laptop laptop, ByteString bytes) {
+        if(size == laptops.length){
+            laptops = Arrays.copyOf(laptops, size << 1);
+            serialized = Arrays.copyOf(serialized, size << 1);
+        }
+        laptops[size] = laptop;
+        serialized[size] = bytes;
+        size++;
+    }
+
+    // sends the hits in the order they were collected, returns false when the context got cancelled
+    boolean replay(Context ctx, LaptopStream stream){
+        for (int i = 0; i < size; i++) {
+            if(ctx.isCancelled()){
+                return false;
+            }
+            if(serialized[i] == null){
+                stream.send(laptops[i]);
+            }else{
+                stream.send(laptops[i], serialized[i]);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// secondary indexes over the filterable laptop fields, mapping values to column rows,
+// plus a small planner that picks the most selective one for a filter
+public class LaptopIndex {
+    private final SortedIndex<Double, Integer> price;
+    private final SortedIndex<Integer, Integer> cores;
+    private final SortedIndex<Double, Integer> ghz;
+    private final SortedIndex<Long, Integer> ram;
+
+    public LaptopIndex(){
+        price = new SortedIndex<>();
+        cores = new SortedIndex<>();
+        ghz = new SortedIndex<>();
+        ram = new SortedIndex<>();
+    }
+
+    public void add(Laptop laptop, int row){
+        price.add(laptop.getPriceUsd(), row);
+        cores.add(laptop.getCpu().getNumberCores(), row);
+        ghz.add(laptop.getCpu().getMinGhz(), row);
+        ram.add(InMemoryLaptopStore.toBit(laptop.getRam()), row);
+    }
+
+    // indexes the rows firstRow, firstRow + 1, ... of a batch. rows are grouped by value
+    // first, so each distinct value is looked up and locked once per index
+    public void addAll(List<Laptop> laptops, int firstRow){
+        addAll(price, laptops, firstRow, Laptop::getPriceUsd);
+        addAll(cores, laptops, firstRow, laptop -> laptop.getCpu().getNumberCores());
+        addAll(ghz, laptops, firstRow, laptop -> laptop.getCpu().getMinGhz());
+        addAll(ram, laptops, firstRow, laptop -> InMemoryLaptopStore.toBit(laptop.getRam()));
+    }
+
+    private static <K extends Comparable<K>> void addAll(SortedIndex<K, Integer> index, List<Laptop> laptops,
+                                                         int firstRow, Function<Laptop, K> key){
+        Map<K, List<Integer>> rows = new HashMap<>();
+        for (int i = 0; i < laptops.size(); i++) {
+            rows.computeIfAbsent(key.apply(laptops.get(i)), k -> new ArrayList<>(4)).add(firstRow + i);
+        }
+        rows.forEach(index::addAll);
+    }
+
+    // returns the candidate rows of the most selective predicate; callers still
+    // have to check the remaining predicates on each candidate.
+    // returns null when no predicate narrows the search below maxCandidates rows,
+    // in which case a sequential column scan is cheaper than chasing index entries
+    public Iterable<Integer> plan(Filter filter, int maxCandidates){
+        return SortedIndex.smallest(List.of(
+                price.atMost(filter.getMaxPriceUsd()),
+                cores.atLeast(filter.getMinCpuCores()),
+                ghz.atLeast(filter.getMinCpuGhz()),
+                ram.atLeast(InMemoryLaptopStore.toBit(filter.getMinRam()))
+        ), maxCandidates);
+    }
+}
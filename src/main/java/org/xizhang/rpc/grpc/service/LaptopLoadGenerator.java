@@ -0,0 +1,374 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.xizhang.rpc.grpc.pcbook.pb.*;
+import io.grpc.Channel;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// drives a weighted mix of create, search, upload and rate calls against a LaptopService.
+// open loop: calls start on a fixed schedule at the target rate, whether or not earlier
+// calls have finished. closed loop: a fixed number of workers, each starting its next call
+// when the previous one is done, optionally paced to a target rate.
+// a latency is measured from the time the call was scheduled to start, not from when it
+// was sent, so a stalled server shows up in the histograms instead of just slowing the
+// generator down (coordinated omission). an unpaced closed loop has no schedule, its
+// latencies are service times. only calls scheduled after the warmup are recorded, so
+// warmup calls that finish late do not leak into the histograms
+public class LaptopLoadGenerator {
+    public enum Operation { CREATE, SEARCH, UPLOAD, RATE }
+
+    private static final int TEMPLATES = 1000;
+    private static final int CHUNK_SIZE = 1024;
+    private static final int RATINGS_PER_CALL = 10;
+    private static final long DEADLINE_SECONDS = 30;
+    // latencies up to one minute with three significant digits
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final LaptopServiceGrpc.LaptopServiceStub asyncStub;
+    private final LaptopServiceGrpc.LaptopServiceBlockingStub blockingStub;
+    private final Generator generator;
+    private final int[] weights;
+    private final int totalWeight;
+    private final int maxOutstanding;
+
+    private final Recorder[] recorders;
+    private final LongAdder[] errors;
+
+    private Laptop[] templates;
+    private String[] laptopIDs;
+    private Filter[] filters;
+    private ByteString[] imageChunks;
+
+    // weights are indexed by Operation, {1, 4, 1, 4} sends four searches and four
+    // ratings for every create and upload. an open loop blocks the schedule once
+    // maxOutstanding calls are running, the late calls still count from their slot
+    public LaptopLoadGenerator(Channel channel, int[] weights, int maxOutstanding){
+        if(weights.length != Operation.values().length){
+            throw new IllegalArgumentException("expected " + Operation.values().length + " weights");
+        }
+        int total = 0;
+        for(int weight : weights){
+            if(weight < 0){
+                throw new IllegalArgumentException("negative weight " + weight);
+            }
+            total += weight;
+        }
+        if(total == 0){
+            throw new IllegalArgumentException("no operation to run");
+        }
+        this.asyncStub = LaptopServiceGrpc.newStub(channel);
+        this.blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
+        this.generator = new Generator();
+        this.weights = weights.clone();
+        this.totalWeight = total;
+        this.maxOutstanding = maxOutstanding;
+
+        int n = Operation.values().length;
+        this.recorders = new Recorder[n];
+        this.errors = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            recorders[i] = new Recorder(MAX_LATENCY_NANOS, 3);
+            errors[i] = new LongAdder();
+        }
+    }
+
+    // creates the laptops that uploads and ratings refer to, and builds the payloads up
+    // front so that the generator does not spend the run inside Generator
+    public void prepare(int laptops, int imageSize){
+        templates = new Laptop[TEMPLATES];
+        for (int i = 0; i < TEMPLATES; i++) {
+            // the server gives every created laptop a new ID, so templates can be sent again
+            templates[i] = generator.NewLaptop().toBuilder().setId("").build();
+        }
+
+        laptopIDs = new String[laptops];
+        for (int i = 0; i < laptops; i++) {
+            Laptop laptop = templates[i % TEMPLATES];
+            laptopIDs[i] = blockingStub.withDeadlineAfter(DEADLINE_SECONDS, TimeUnit.SECONDS)
+                    .createLaptop(CreateLaptopRequest.newBuilder().setLaptop(laptop).build())
+                    .getId();
+        }
+
+        filters = new Filter[]{
+                filter(3000, 4, 2.5, 8),
+                filter(2000, 6, 3.0, 16),
+                filter(1500, 2, 2.0, 4),
+        };
+
+        byte[] image = new byte[imageSize];
+        new Random().nextBytes(image);
+        imageChunks = new ByteString[(imageSize + CHUNK_SIZE - 1) / CHUNK_SIZE];
+        for (int i = 0; i < imageChunks.length; i++) {
+            int offset = i * CHUNK_SIZE;
+            imageChunks[i] = ByteString.copyFrom(image, offset, Math.min(CHUNK_SIZE, imageSize - offset));
+        }
+    }
+
+    public Report runOpenLoop(double qps, Duration warmup, Duration duration) throws InterruptedException {
+        if(qps <= 0){
+            throw new IllegalArgumentException("invalid rate " + qps);
+        }
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / qps);
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+        reset();
+
+        for (long i = 0; ; i++) {
+            long intended = start + i * interval;
+            if(intended >= end){
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if(wait > 0){
+                LockSupport.parkNanos(wait);
+            }
+            outstanding.acquire();
+            call(nextOperation(), intended, intended >= measureFrom).whenComplete((r, t) -> outstanding.release());
+        }
+        // lets the last calls finish so that they are counted
+        outstanding.acquire(maxOutstanding);
+        return report("open loop, " + qps + " qps", duration);
+    }
+
+    // qps 0 runs every worker back to back
+    public Report runClosedLoop(int concurrency, double qps, Duration warmup, Duration duration) throws InterruptedException {
+        if(concurrency < 1){
+            throw new IllegalArgumentException("invalid concurrency " + concurrency);
+        }
+        long interval = qps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * concurrency / qps) : 0;
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+        reset();
+
+        List<Thread> workers = new ArrayList<>(concurrency);
+        for (int w = 0; w < concurrency; w++) {
+            // spreads the workers' slots over one interval
+            long first = start + interval * w / concurrency;
+            Thread worker = new Thread(() -> {
+                long intended = first;
+                while(intended < end){
+                    long now = System.nanoTime();
+                    if(interval == 0){
+                        intended = now;
+                    }else if(intended > now){
+                        LockSupport.parkNanos(intended - now);
+                    }
+                    call(nextOperation(), intended, intended >= measureFrom).exceptionally(t -> null).join();
+                    intended += interval;
+                }
+            }, "laptop-load-" + w);
+            worker.start();
+            workers.add(worker);
+        }
+
+        for(Thread worker : workers){
+            worker.join();
+        }
+        String mode = "closed loop, " + concurrency + " workers" + (qps > 0 ? ", " + qps + " qps" : "");
+        return report(mode, duration);
+    }
+
+    // clears what an earlier run recorded, none of its calls are still running
+    private void reset(){
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i].reset();
+            errors[i].reset();
+        }
+    }
+
+    private Report report(String mode, Duration duration){
+        Operation[] operations = Operation.values();
+        Histogram[] histograms = new Histogram[operations.length];
+        long[] failed = new long[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            histograms[i] = recorders[i].getIntervalHistogram();
+            failed[i] = errors[i].sum();
+        }
+        return new Report(mode, duration, histograms, failed);
+    }
+
+    private Operation nextOperation(){
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        Operation[] operations = Operation.values();
+        for (int i = 0; i < operations.length; i++) {
+            r -= weights[i];
+            if(r < 0){
+                return operations[i];
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    // starts the call without waiting for it, the future completes once it is recorded.
+    // a call that is not measured is only run
+    private CompletableFuture<Void> call(Operation operation, long intended, boolean measured){
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> recorded = done.whenComplete((r, t) -> {
+            if(!measured){
+                return;
+            }
+            long latency = Math.min(System.nanoTime() - intended, MAX_LATENCY_NANOS);
+            recorders[operation.ordinal()].recordValue(Math.max(latency, 0));
+            if(t != null){
+                errors[operation.ordinal()].increment();
+            }
+        });
+        try{
+            switch (operation){
+                case CREATE -> create(done);
+                case SEARCH -> search(done);
+                case UPLOAD -> upload(done);
+                case RATE -> rate(done);
+            }
+        }catch (RuntimeException e){
+            done.completeExceptionally(e);
+        }
+        return recorded;
+    }
+
+    private LaptopServiceGrpc.LaptopServiceStub stub(){
+        return asyncStub.withDeadlineAfter(DEADLINE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void create(CompletableFuture<Void> done){
+        Laptop laptop = templates[ThreadLocalRandom.current().nextInt(templates.length)];
+        stub().createLaptop(CreateLaptopRequest.newBuilder().setLaptop(laptop).build(), new Completion<>(done));
+    }
+
+    private void search(CompletableFuture<Void> done){
+        Filter filter = filters[ThreadLocalRandom.current().nextInt(filters.length)];
+        stub().searchLaptop(SearchLaptopRequest.newBuilder().setFilter(filter).build(), new Completion<>(done));
+    }
+
+    private void upload(CompletableFuture<Void> done){
+        StreamObserver<UploadImageRequest> requestObserver = stub().uploadImage(new Completion<>(done));
+        ImageInfo info = ImageInfo.newBuilder()
+                .setLaptopId(randomLaptopID())
+                .setImageType(".jpg")
+                .build();
+        requestObserver.onNext(UploadImageRequest.newBuilder().setInfo(info).build());
+        for(ByteString chunk : imageChunks){
+            if(done.isDone()){
+                return;
+            }
+            requestObserver.onNext(UploadImageRequest.newBuilder().setChunkData(chunk).build());
+        }
+        requestObserver.onCompleted();
+    }
+
+    private void rate(CompletableFuture<Void> done){
+        StreamObserver<RateLaptopRequest> requestObserver = stub().rateLaptop(new Completion<>(done));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < RATINGS_PER_CALL; i++) {
+            requestObserver.onNext(RateLaptopRequest.newBuilder()
+                    .setLaptopId(randomLaptopID())
+                    .setScore(1 + random.nextInt(10))
+                    .build());
+        }
+        requestObserver.onCompleted();
+    }
+
+    private String randomLaptopID(){
+        return laptopIDs[ThreadLocalRandom.current().nextInt(laptopIDs.length)];
+    }
+
+    private static Filter filter(double maxPrice, int minCores, double minGhz, long minRamGB){
+        return Filter.newBuilder()
+                .setMaxPriceUsd(maxPrice)
+                .setMinCpuCores(minCores)
+                .setMinCpuGhz(minGhz)
+                .setMinRam(Memory.newBuilder().setValue(minRamGB).setUnit(Memory.Unit.GIGABYTE))
+                .build();
+    }
+
+    // completes the future when the call ends, the responses themselves are dropped
+    private static class Completion<T> implements StreamObserver<T> {
+        private final CompletableFuture<Void> done;
+
+        Completion(CompletableFuture<Void> done){
+            this.done = done;
+        }
+
+        @Override
+        public void onNext(T value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            done.complete(null);
+        }
+    }
+
+    public static class Report {
+        private final String mode;
+        private final Duration duration;
+        private final Histogram[] histograms;
+        private final long[] errors;
+
+        Report(String mode, Duration duration, Histogram[] histograms, long[] errors){
+            this.mode = mode;
+            this.duration = duration;
+            this.histograms = histograms;
+            this.errors = errors;
+        }
+
+        public Histogram getHistogram(Operation operation){
+            return histograms[operation.ordinal()];
+        }
+
+        public long getErrors(Operation operation){
+            return errors[operation.ordinal()];
+        }
+
+        public double getThroughput(Operation operation){
+            return histograms[operation.ordinal()].getTotalCount() / (duration.toNanos() / 1e9);
+        }
+
+        // one line per operation that ran, latencies in milliseconds
+        public void print(PrintStream out){
+            out.println(mode + ", " + duration.toSeconds() + "s");
+            out.printf("%-8s %10s %8s %10s %10s %10s %10s%n", "rpc", "calls/s", "errors", "p50", "p99", "p99.9", "max");
+            for(Operation operation : Operation.values()){
+                Histogram histogram = getHistogram(operation);
+                if(histogram.getTotalCount() == 0){
+                    continue;
+                }
+                out.printf("%-8s %10.1f %8d %10.3f %10.3f %10.3f %10.3f%n",
+                        operation.name().toLowerCase(),
+                        getThroughput(operation),
+                        getErrors(operation),
+                        millis(histogram.getValueAtPercentile(50)),
+                        millis(histogram.getValueAtPercentile(99)),
+                        millis(histogram.getValueAtPercentile(99.9)),
+                        millis(histogram.getMaxValue()));
+            }
+        }
+
+        private static double millis(long nanos){
+            return nanos / 1e6;
+        }
+    }
+}
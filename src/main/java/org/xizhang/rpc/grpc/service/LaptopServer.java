@@ -1,7 +1,12 @@
 package org.xizhang.rpc.grpc.service;
 
+import com.xizhang.rpc.grpc.pcbook.pb.LaptopServiceGrpc;
+import io.grpc.Metadata;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallExecutorSupplier;
+import io.grpc.ServerInterceptors;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.protobuf.services.ProtoReflectionService;
@@ -12,13 +17,35 @@ import io.netty.handler.ssl.SslContextBuilder;
 import javax.net.ssl.SSLException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 public class LaptopServer {
     private static final Logger logger = Logger.getLogger(LaptopServer.class.getName());
+    // methods that block on store or disk I/O in the call thread
+    private static final Set<String> BLOCKING_METHODS = Set.of(
+            LaptopServiceGrpc.getCreateLaptopMethod().getFullMethodName(),
+            LaptopServiceGrpc.getCreateLaptopsMethod().getFullMethodName(),
+            LaptopServiceGrpc.getUploadImageMethod().getFullMethodName(),
+            LaptopServiceGrpc.getDownloadImageMethod().getFullMethodName(),
+            LaptopServiceGrpc.getRateLaptopMethod().getFullMethodName());
     private final int port;
     private final Server server;
+    private final List<ExecutorService> executors;
+    private final MetricsServerInterceptor metrics;
+    private final LaptopService laptopService;
 
     public LaptopServer(int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore){
         this(ServerBuilder.forPort(port), port, laptopStore, imageStore, ratingStore);
@@ -28,15 +55,128 @@ public class LaptopServer {
         this(NettyServerBuilder.forPort(port).sslContext(sslContext), port, laptopStore, imageStore, ratingStore);
     }
 
+    // threads is the pool size of ExecutorMode.FIXED and ignored by the other modes
+    public LaptopServer(int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore, SslContext sslContext,
+                        ExecutorMode executorMode, int threads){
+        this(port, laptopStore, imageStore, ratingStore, sslContext, executorMode, threads, AccessLog.NONE);
+    }
+
+    public LaptopServer(int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore, SslContext sslContext,
+                        ExecutorMode executorMode, int threads, AccessLog accessLog){
+        this(port, laptopStore, imageStore, ratingStore, sslContext, executorMode, threads, accessLog, null, null);
+    }
 
+    public LaptopServer(int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore, SslContext sslContext,
+                        ExecutorMode executorMode, int threads, AccessLog accessLog, RatingLeaderboard leaderboard,
+                        RatingDistributions distributions){
+        this(NettyServerBuilder.forPort(port).sslContext(sslContext), port, laptopStore, imageStore, ratingStore,
+                executorMode, threads, accessLog, leaderboard, distributions);
+    }
 
     //using in test
     public LaptopServer(ServerBuilder serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore){
+        this(serverBuilder, port, laptopStore, imageStore, ratingStore, ExecutorMode.CACHED, 0);
+    }
+
+    public LaptopServer(ServerBuilder serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore,
+                        RatingLeaderboard leaderboard, RatingDistributions distributions){
+        this(serverBuilder, port, laptopStore, imageStore, ratingStore, ExecutorMode.CACHED, 0, AccessLog.NONE,
+                leaderboard, distributions);
+    }
+
+    public LaptopServer(ServerBuilder serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore,
+                        ExecutorMode executorMode, int threads){
+        this(serverBuilder, port, laptopStore, imageStore, ratingStore, executorMode, threads, AccessLog.NONE);
+    }
+
+    public LaptopServer(ServerBuilder serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore,
+                        ExecutorMode executorMode, int threads, AccessLog accessLog){
+        this(serverBuilder, port, laptopStore, imageStore, ratingStore, executorMode, threads, accessLog, null, null);
+    }
+
+    // leaderboard serves TopRatedLaptops and distributions RatingDistribution, see LaptopService
+    public LaptopServer(ServerBuilder serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore,
+                        ExecutorMode executorMode, int threads, AccessLog accessLog, RatingLeaderboard leaderboard,
+                        RatingDistributions distributions){
         this.port = port;
-        LaptopService laptopService = new LaptopService(laptopStore, imageStore, ratingStore);
-        server = serverBuilder.addService(laptopService)
+        this.executors = new ArrayList<>();
+        ExecutorService callExecutor = configureExecutor(serverBuilder, executorMode, threads);
+        // virtual threads are just as well suited to searches blocked on a slow client
+        ExecutorService searchExecutor = callExecutor;
+        if(executorMode != ExecutorMode.VIRTUAL){
+            searchExecutor = LaptopService.newSearchExecutor();
+            executors.add(searchExecutor);
+        }
+        laptopService = new LaptopService(laptopStore, imageStore, ratingStore, searchExecutor,
+                LaptopService.DEFAULT_RATE_BATCH_SIZE, LaptopService.DEFAULT_RATE_LINGER_MILLIS, accessLog, leaderboard, distributions);
+        // the admin services are not metered, scraping does not show up in the numbers
+        metrics = new MetricsServerInterceptor();
+        server = serverBuilder.addService(ServerInterceptors.intercept(laptopService.bindSerializedService(), metrics))
+                .addService(new MetricsService(metrics))
                 .addService(ProtoReflectionService.newInstance())
                 .build();
+        logger.info("calls run in executor mode " + executorMode);
+    }
+
+    // returns the call executor, null when gRPC keeps its default
+    private ExecutorService configureExecutor(ServerBuilder<?> serverBuilder, ExecutorMode executorMode, int threads){
+        switch (executorMode){
+            case CACHED:
+                return null;
+            case FIXED:
+                if(threads < 1){
+                    throw new IllegalArgumentException("a fixed executor needs at least 1 thread");
+                }
+                ExecutorService fixed = Executors.newFixedThreadPool(threads, namedThreads("laptop-call"));
+                executors.add(fixed);
+                serverBuilder.executor(fixed);
+                return fixed;
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                executors.add(virtual);
+                serverBuilder.executor(virtual);
+                return virtual;
+            case DIRECT:
+                ExecutorService blocking = Executors.newCachedThreadPool(namedThreads("laptop-blocking-call"));
+                executors.add(blocking);
+                // null keeps the call on the default executor, which is the direct one
+                serverBuilder.directExecutor().callExecutor(new ServerCallExecutorSupplier() {
+                    @Override
+                    public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata) {
+                        return BLOCKING_METHODS.contains(call.getMethodDescriptor().getFullMethodName()) ? blocking : null;
+                    }
+                });
+                return null;
+            default:
+                throw new IllegalArgumentException("unknown executor mode " + executorMode);
+        }
+    }
+
+    // the build targets Java 17, virtual threads are looked up at runtime
+    private static ExecutorService newVirtualThreadPerTaskExecutor(){
+        try{
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch (ReflectiveOperationException e){
+            throw new IllegalStateException("virtual threads need a Java 21 runtime", e);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String name){
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public MetricsServerInterceptor getMetrics(){
+        return metrics;
+    }
+
+    // the port the server listens on once started, the actual one when it was given 0
+    public int getPort(){
+        return server.getPort();
     }
 
     public void start() throws IOException {
@@ -64,6 +204,10 @@ public class LaptopServer {
         if(server != null){
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        laptopService.close();
+        for(ExecutorService executor : executors){
+            executor.shutdown();
+        }
 
     }
 
@@ -90,12 +234,30 @@ public class LaptopServer {
 
     }
     public static void main(String[] args) throws InterruptedException, IOException {
-        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
-        DiskImageStore imageStore = new DiskImageStore("img");
-        InMemoryRatingStore ratingStore = new InMemoryRatingStore();
+        // shard searches get a pool of their own rather than sharing the common pool
+        int processors = Runtime.getRuntime().availableProcessors();
+        ShardedLaptopStore shardedLaptopStore = new ShardedLaptopStore(new ForkJoinPool(processors), processors);
+        LogStructuredLaptopStore logStore = new LogStructuredLaptopStore(
+                Paths.get("data", "laptops"), shardedLaptopStore, 256, 64L << 20);
+        // dashboards repeat a few filters, their results are cached
+        CachingLaptopStore laptopStore = new CachingLaptopStore(logStore, 64L << 20);
+        DiskImageStore imageStore = new DiskImageStore("img", true);
+        DistributionRatingStore distributions = new DistributionRatingStore(new DurableRatingStore(Paths.get("data", "ratings")));
+        LeaderboardRatingStore ratingStore = new LeaderboardRatingStore(distributions);
         SslContext sslContext = LaptopServer.loadTLSCredentials();
-        LaptopServer server = new LaptopServer(8080, laptopStore, imageStore, ratingStore, sslContext);
+        // usage: LaptopServer [cached|fixed|virtual|direct] [threads]
+        ExecutorMode executorMode = args.length > 0 ? ExecutorMode.valueOf(args[0].toUpperCase()) : ExecutorMode.CACHED;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+        // one line per search hit and image chunk would swamp the log, those are sampled
+        Files.createDirectories(Paths.get("logs"));
+        AccessLog accessLog = new AccessLog(Files.newBufferedWriter(Paths.get("logs", "access.log"),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16)
+                .sample(AccessLog.Event.SEARCH_HIT, 100)
+                .sample(AccessLog.Event.IMAGE_CHUNK, 100);
+        LaptopServer server = new LaptopServer(8080, laptopStore, imageStore, ratingStore, sslContext,
+                executorMode, threads, accessLog, ratingStore, distributions);
         server.start();
         server.blockUntilShutdown();
+        accessLog.close();
     }
 }
@@ -1,27 +1,145 @@
 package org.xizhang.rpc.grpc.service;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.xizhang.rpc.grpc.pcbook.pb.*;
 import io.grpc.Context;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase{
+public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase implements Closeable {
     private static final Logger logger = Logger.getLogger(LaptopService.class.getName());
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final long MAX_IMAGE_SIZE = 512L << 20;
+    private static final int DOWNLOAD_CHUNK_SIZE = 64 << 10;
+    private static final int CREATE_BATCH_SIZE = 256;
+    private static final int DEFAULT_TOP_K = 10;
+    private static final int MAX_TOP_K = 1000;
+    static final int DEFAULT_RATE_BATCH_SIZE = 128;
+    static final long DEFAULT_RATE_LINGER_MILLIS = 2;
+    private static final int WATCH_QUEUE_SIZE = 1024;
+    // searches beyond this many wait for a thread rather than each starting one
+    private static final int SEARCH_THREADS = 4 * Runtime.getRuntime().availableProcessors();
     private LaptopStore laptopStore;
     private ImageStore imageStore;
     private RatingStore ratingStore;
+    private RatingLeaderboard leaderboard;
+    private RatingDistributions distributions;
+    private Executor searchExecutor;
+    // set when the service created searchExecutor itself and has to shut it down
+    private boolean ownsSearchExecutor;
+    private int rateBatchSize;
+    private long rateLingerMillis;
+    private ScheduledExecutorService rateTimer;
+    private AccessLog accessLog;
+    private LaptopWatchRegistry watchRegistry;
 
     public LaptopService(LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore){
+        this(laptopStore, imageStore, ratingStore, newSearchExecutor());
+        ownsSearchExecutor = true;
+    }
+
+    // searches run on searchExecutor so they can block on flow control
+    // without holding up the call's own executor. watches drain their queues on it too,
+    // and rate batches flush on it once their linger expires
+    public LaptopService(LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore, Executor searchExecutor){
+        this(laptopStore, imageStore, ratingStore, searchExecutor, DEFAULT_RATE_BATCH_SIZE, DEFAULT_RATE_LINGER_MILLIS);
+    }
+
+    // rate-laptop requests are handled in batches of up to rateBatchSize; a batch that is
+    // not full waits at most rateLingerMillis (0: not at all) for more requests
+    public LaptopService(LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore, Executor searchExecutor,
+                         int rateBatchSize, long rateLingerMillis){
+        this(laptopStore, imageStore, ratingStore, searchExecutor, rateBatchSize, rateLingerMillis, AccessLog.NONE);
+    }
+
+    // search hits, image chunks and ratings go to accessLog instead of the logger
+    public LaptopService(LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore, Executor searchExecutor,
+                         int rateBatchSize, long rateLingerMillis, AccessLog accessLog){
+        this(laptopStore, imageStore, ratingStore, searchExecutor, rateBatchSize, rateLingerMillis, accessLog, null, null);
+    }
+
+    // leaderboard serves TopRatedLaptops and distributions RatingDistribution, both must see
+    // every rating added to ratingStore, usually they are decorators in its chain.
+    // an RPC without its component is UNIMPLEMENTED
+    public LaptopService(LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore, Executor searchExecutor,
+                         int rateBatchSize, long rateLingerMillis, AccessLog accessLog, RatingLeaderboard leaderboard,
+                         RatingDistributions distributions){
+        if(rateBatchSize < 1 || rateLingerMillis < 0){
+            throw new IllegalArgumentException("invalid rate batch size or linger time");
+        }
         this.laptopStore = laptopStore;
         this.imageStore = imageStore;
         this.ratingStore = ratingStore;
+        this.leaderboard = leaderboard;
+        this.distributions = distributions;
+        this.searchExecutor = searchExecutor;
+        this.rateBatchSize = rateBatchSize;
+        this.rateLingerMillis = rateLingerMillis;
+        this.accessLog = accessLog;
+        this.watchRegistry = new LaptopWatchRegistry(searchExecutor);
+        this.rateTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "laptop-rate-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // at most SEARCH_THREADS threads, which exit after a minute without work
+    static ExecutorService newSearchExecutor(){
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "laptop-search-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // stops the linger timer once the batches waiting on it are flushed, and the search
+    // executor when the service created it. an executor passed in is the caller's to shut down
+    @Override
+    public void close(){
+        rateTimer.shutdown();
+        if(ownsSearchExecutor){
+            ((ExecutorService) searchExecutor).shutdown();
+        }
     }
 
     @Override
@@ -29,7 +147,6 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase{
         Laptop laptop = request.getLaptop();
 
         String id = laptop.getId();
-        logger.info("got a create-laptop request with ID: " + id);
         UUID uuid;
         if(id.isEmpty()){
             uuid = UUID.randomUUID();
@@ -58,7 +175,11 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase{
             return;
         }
 
-        Laptop laptopcopy = laptop.toBuilder().setId(uuid.toString()).build();
+        // only rebuild the message when the ID has to be filled in or normalized
+        Laptop laptopcopy = laptop;
+        if(!id.equals(uuid.toString())){
+            laptopcopy = laptop.toBuilder().setId(uuid.toString()).build();
+        }
         try{
             this.laptopStore.save(laptopcopy);
         }catch(AlreadyExistsException alreadyExistsException){
@@ -74,6 +195,7 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase{
                     ).asRuntimeException());
             return;
         }
+        watchRegistry.publish(laptopcopy);
         CreateLaptopResponse response = CreateLaptopResponse.newBuilder().setId(laptopcopy.getId()).build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
@@ -81,7 +203,98 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase{
         //For unary RPCs, it effectively marks the end of the call from the server's side.
         //After calling .onCompleted(), no more messages can be sent to the client using this responseObserver.
 
-        logger.info("save laptop with id : " + laptopcopy.getId());
+        accessLog.log(AccessLog.Event.CREATE, laptopcopy.getId(), 0);
+    }
+
+    @Override
+    public StreamObserver<CreateLaptopRequest> createLaptops(StreamObserver<CreateLaptopsResponse> responseObserver){
+        ServerCallStreamObserver<CreateLaptopsResponse> serverObserver =
+                (ServerCallStreamObserver<CreateLaptopsResponse>) responseObserver;
+        // requests are only asked for as batches get stored, so a client sending faster than
+        // the store keeps up is held back by flow control instead of filling the heap
+        serverObserver.disableAutoRequest();
+        serverObserver.request(CREATE_BATCH_SIZE);
+        return new StreamObserver<CreateLaptopRequest>() {
+            private final List<Laptop> batch = new ArrayList<>(CREATE_BATCH_SIZE);
+            private final int[] batchIndexes = new int[CREATE_BATCH_SIZE];
+            private final CreateLaptopsResponse.Builder response = CreateLaptopsResponse.newBuilder();
+            private int received;
+            private boolean failed;
+
+            @Override
+            public void onNext(CreateLaptopRequest request) {
+                if(failed){
+                    return;
+                }
+                int index = received++;
+                Laptop laptop = request.getLaptop();
+                String id = laptop.getId();
+                if(id.isEmpty()){
+                    laptop = laptop.toBuilder().setId(UUID.randomUUID().toString()).build();
+                    response.addGenerated(index).addGeneratedIds(laptop.getId());
+                }else{
+                    String canonical;
+                    try{
+                        canonical = UUID.fromString(id).toString();
+                    }catch (IllegalArgumentException e){
+                        response.addInvalid(index);
+                        serverObserver.request(1);
+                        return;
+                    }
+                    if(!id.equals(canonical)){
+                        laptop = laptop.toBuilder().setId(canonical).build();
+                    }
+                }
+                batchIndexes[batch.size()] = index;
+                batch.add(laptop);
+                if(batch.size() == CREATE_BATCH_SIZE){
+                    store();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failed = true;
+                logger.warning(t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                if(failed){
+                    return;
+                }
+                store();
+                if(!failed){
+                    logger.info("created " + response.getCreatedCount() + " laptops from " + received + " requests");
+                    responseObserver.onNext(response.build());
+                    responseObserver.onCompleted();
+                }
+            }
+
+            private void store(){
+                int n = batch.size();
+                if(n == 0){
+                    return;
+                }
+                BitSet existing;
+                try{
+                    existing = laptopStore.saveAll(batch);
+                }catch (RuntimeException e){
+                    failed = true;
+                    responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                    return;
+                }
+                for (int i = existing.nextSetBit(0); i >= 0; i = existing.nextSetBit(i + 1)) {
+                    response.addAlreadyExists(batchIndexes[i]);
+                }
+                for (int i = existing.nextClearBit(0); i < n; i = existing.nextClearBit(i + 1)) {
+                    watchRegistry.publish(batch.get(i));
+                }
+                response.setCreatedCount(response.getCreatedCount() + n - existing.cardinality());
+                batch.clear();
+                serverObserver.request(n);
+            }
+        };
     }
 
     @Override
@@ -89,129 +302,557 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase{
         Filter filter = request.getFilter();
         logger.info("got a filter from this request with filter " + filter);
 
-        this.laptopStore.search(Context.current(), filter, new LaptopStream() {
-            @Override
-            public void send(Laptop laptop) {
-                logger.info("found laptop with ID : " + laptop.getId());
-                SearchLaptopResponse response = SearchLaptopResponse.newBuilder().setLaptop(laptop).build();
-                responseObserver.onNext(response);
+        // the store scan pauses whenever the client stops reading and resumes on the
+        // next onReady, so a slow client never makes the server buffer the whole result
+        FlowControlledObserver<SearchLaptopResponse> stream = new FlowControlledObserver<>(
+                (ServerCallStreamObserver<SearchLaptopResponse>) responseObserver);
+        executeSearch(stream, ctx -> {
+            this.laptopStore.search(ctx, filter, new LaptopStream() {
+                @Override
+                public void send(Laptop laptop) {
+                    accessLog.log(AccessLog.Event.SEARCH_HIT, laptop.getId(), 0);
+                    SearchLaptopResponse response = SearchLaptopResponse.newBuilder().setLaptop(laptop).build();
+                    stream.onNext(response);
+                }
+            });
+        });
+    }
+
+    // same as searchLaptop, but sends the laptop bytes cached by the store through
+    // SerializedLaptopMarshaller instead of re-serializing every hit
+    public void searchLaptopSerialized(SearchLaptopRequest request, StreamObserver<ByteString> responseObserver){
+        Filter filter = request.getFilter();
+        logger.info("got a filter from this request with filter " + filter);
+
+        FlowControlledObserver<ByteString> stream = new FlowControlledObserver<>(
+                (ServerCallStreamObserver<ByteString>) responseObserver);
+        executeSearch(stream, ctx -> {
+            this.laptopStore.search(ctx, filter, new LaptopStream() {
+                @Override
+                public void send(Laptop laptop) {
+                    send(laptop, laptop.toByteString());
+                }
+
+                @Override
+                public void send(Laptop laptop, ByteString serialized) {
+                    accessLog.log(AccessLog.Event.SEARCH_HIT, laptop.getId(), 0);
+                    stream.onNext(serialized);
+                }
+            });
+        });
+    }
+
+    // the generated service definition with SearchLaptop bound to searchLaptopSerialized.
+    // the wire format is unchanged, clients keep using the generated stubs
+    public ServerServiceDefinition bindSerializedService(){
+        ServerServiceDefinition generated = bindService();
+        MethodDescriptor<SearchLaptopRequest, SearchLaptopResponse> search = LaptopServiceGrpc.getSearchLaptopMethod();
+        MethodDescriptor<SearchLaptopRequest, ByteString> serializedSearch = search
+                .toBuilder(search.getRequestMarshaller(), new SerializedLaptopMarshaller())
+                .build();
+
+        ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(LaptopServiceGrpc.SERVICE_NAME)
+                .setSchemaDescriptor(generated.getServiceDescriptor().getSchemaDescriptor())
+                .addMethod(serializedSearch);
+        List<ServerMethodDefinition<?, ?>> methods = new ArrayList<>();
+        for(ServerMethodDefinition<?, ?> method : generated.getMethods()){
+            if(!method.getMethodDescriptor().getFullMethodName().equals(search.getFullMethodName())){
+                descriptor.addMethod(method.getMethodDescriptor());
+                methods.add(method);
+            }
+        }
+
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor.build())
+                .addMethod(serializedSearch, ServerCalls.asyncServerStreamingCall(this::searchLaptopSerialized));
+        for(ServerMethodDefinition<?, ?> method : methods){
+            builder.addMethod(method);
+        }
+        return builder.build();
+    }
+
+    // the filter stays registered until the client cancels, matching laptops are pushed as
+    // they are created. see LaptopWatchRegistry for matching and the overflow policy
+    @Override
+    public void watchLaptops(WatchLaptopsRequest request, StreamObserver<WatchLaptopsResponse> responseObserver){
+        Filter filter = request.getFilter();
+        logger.info("got a watch request with filter " + filter);
+        watchRegistry.watch(filter, (ServerCallStreamObserver<WatchLaptopsResponse>) responseObserver, WATCH_QUEUE_SIZE);
+    }
+
+    @Override
+    public void searchLaptopBatch(SearchLaptopBatchRequest request, StreamObserver<SearchLaptopBatchResponse> responseObserver){
+        Filter filter = request.getFilter();
+        logger.info("got a batch search request with filter " + filter);
+
+        int batchSize = request.getBatchSize() <= 0 ? DEFAULT_BATCH_SIZE : Math.min(request.getBatchSize(), MAX_BATCH_SIZE);
+        int pageSize = request.getPageSize() <= 0 ? Integer.MAX_VALUE : request.getPageSize();
+        long after;
+        try{
+            after = decodePageToken(request.getPageToken());
+        }catch (IllegalArgumentException e){
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("invalid page token").asRuntimeException());
+            return;
+        }
+
+        FlowControlledObserver<SearchLaptopBatchResponse> stream = new FlowControlledObserver<>(
+                (ServerCallStreamObserver<SearchLaptopBatchResponse>) responseObserver);
+        executeSearch(stream, ctx -> {
+            SearchLaptopBatchResponse.Builder batch = SearchLaptopBatchResponse.newBuilder();
+            long next = this.laptopStore.search(ctx, filter, after, pageSize, laptop -> {
+                batch.addLaptops(laptop);
+                if(batch.getLaptopsCount() == batchSize){
+                    stream.onNext(batch.build());
+                    batch.clear();
+                }
+            });
+            if(next >= 0){
+                batch.setNextPageToken(encodePageToken(next));
+            }
+            if(batch.getLaptopsCount() > 0 || next >= 0){
+                stream.onNext(batch.build());
             }
         });
+    }
 
-        responseObserver.onCompleted();
-        logger.info("search laptop completed");
+    // runs a store search on the search executor and completes the stream when it is done
+    private void executeSearch(FlowControlledObserver<?> stream, SearchTask task){
+        Context ctx = Context.current();
+        searchExecutor.execute(ctx.wrap(() -> {
+            try{
+                task.run(ctx);
+            }catch (Exception e){
+                if(!stream.isCancelled()){
+                    stream.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                }
+                return;
+            }
+
+            if(stream.isCancelled()){
+                logger.info("search laptop is cancelled");
+                return;
+            }
+            stream.onCompleted();
+            logger.info("search laptop completed");
+        }));
+    }
+
+    private interface SearchTask {
+        void run(Context ctx);
+    }
+
+    // page tokens are opaque to clients, they wrap the store position to resume from
+    private static String encodePageToken(long position){
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(position);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    private static long decodePageToken(String token){
+        if(token.isEmpty()){
+            return -1;
+        }
+        byte[] bytes = Base64.getUrlDecoder().decode(token);
+        if(bytes.length != Long.BYTES){
+            throw new IllegalArgumentException("invalid page token");
+        }
+        long position = ByteBuffer.wrap(bytes).getLong();
+        if(position < 0){
+            throw new IllegalArgumentException("invalid page token");
+        }
+        return position;
     }
 
     @Override
     public StreamObserver<UploadImageRequest> uploadImage(StreamObserver<UploadImageResponse> responseObserver){
         return new StreamObserver<UploadImageRequest>() {
+            // chunks go straight to the image store, only the current chunk is held in memory
+            private ImageWriter imageWriter;
             private String laptopID;
-            private String imageType;
-            private ByteArrayOutputStream imageData;
-            private static final int maxImageSize = 1 << 20;
+            private boolean failed;
             @Override
             public void onNext(UploadImageRequest request) {
+                if(failed){
+                    return;
+                }
                 if(request.getDataCase() == UploadImageRequest.DataCase.INFO){
                     ImageInfo info = request.getInfo();
                     logger.info("receive image info : " + info);
-
-                    laptopID = info.getLaptopId();
-                    imageType = info.getImageType();
-                    imageData = new ByteArrayOutputStream();
+                    if(imageWriter != null){
+                        fail(Status.INVALID_ARGUMENT.withDescription("image info was already sent"));
+                        return;
+                    }
 
                     // check laptop exists in store
-                    Laptop found = laptopStore.find(laptopID);
+                    Laptop found = laptopStore.find(info.getLaptopId());
                     if(found == null){
-                        responseObserver.onError(
-                                Status.NOT_FOUND.withDescription("laptop id does not exists")
-                                        .asRuntimeException()
-                        );
+                        fail(Status.NOT_FOUND.withDescription("laptop id does not exists"));
+                        return;
                     }
 
+                    try {
+                        imageWriter = imageStore.create(info.getLaptopId(), info.getImageType());
+                        laptopID = info.getLaptopId();
+                    } catch (IllegalArgumentException e) {
+                        fail(Status.INVALID_ARGUMENT.withDescription(e.getMessage()));
+                    } catch (IOException e) {
+                        fail(Status.INTERNAL.withDescription("cannot create image " + e.getMessage()));
+                    }
                     return;
                 }
                 ByteString chunkData = request.getChunkData();
-                logger.info("receive image chunk with size + " + chunkData.size());
-                if(imageData == null){
+                if(imageWriter == null){
                     logger.info("image info wasn't sent before");
-                    responseObserver.onError(Status.INVALID_ARGUMENT
-                            .withDescription("image wasn't sent before").asRuntimeException());
+                    fail(Status.INVALID_ARGUMENT.withDescription("image wasn't sent before"));
                     return;
                 }
-                int size = imageData.size() + chunkData.size();
-                if(size > maxImageSize){
+                accessLog.log(AccessLog.Event.IMAGE_CHUNK, laptopID, chunkData.size());
+                long size = imageWriter.size() + chunkData.size();
+                if(size > MAX_IMAGE_SIZE){
                     logger.info("image is too large");
-                    responseObserver.onError(Status.INVALID_ARGUMENT
-                            .withDescription("image was too large").asRuntimeException());
+                    fail(Status.INVALID_ARGUMENT.withDescription("image was too large"));
                     return;
                 }
                 try {
-                    chunkData.writeTo(imageData); //write data
+                    imageWriter.write(chunkData); //write data
                 } catch (IOException e) {
-                    responseObserver.onError(Status.INTERNAL
-                            .withDescription("cannot write chunk data " + e.getMessage()).asRuntimeException());
-                    return;
+                    fail(Status.INTERNAL.withDescription("cannot write chunk data " + e.getMessage()));
                 }
             }
 
             @Override
             public void onError(Throwable t) {
                 logger.warning(t.getMessage());
+                if(imageWriter != null){
+                    imageWriter.abort();
+                }
             }
 
             @Override
             public void onCompleted() {
+                if(failed){
+                    return;
+                }
+                if(imageWriter == null){
+                    fail(Status.INVALID_ARGUMENT.withDescription("image wasn't sent before"));
+                    return;
+                }
                 String imageID = "";
-                int imageSize = imageData.size();
+                long imageSize = imageWriter.size();
                 try {
-                    imageID = imageStore.save(laptopID, imageType, imageData);
+                    imageID = imageWriter.commit();
                 } catch (IOException e) {
+                    failed = true;
                     responseObserver.onError(Status.INTERNAL
                             .withDescription("cannot save image to store " + e.getMessage()).asRuntimeException());
                     return;
                 }
                 UploadImageResponse response = UploadImageResponse.newBuilder()
                         .setId(imageID)
-                        .setSize(imageSize)
+                        .setSize((int) imageSize)
                         .build();
                 responseObserver.onNext(response);
                 responseObserver.onCompleted();
             }
+
+            // ends the call and removes whatever was written of the image
+            private void fail(Status status){
+                failed = true;
+                if(imageWriter != null){
+                    imageWriter.abort();
+                }
+                responseObserver.onError(status.asRuntimeException());
+            }
         };
     }
     @Override
-    public StreamObserver<RateLaptopRequest> rateLaptop(StreamObserver<RateLaptopResponse> responseObserver){
-        return new StreamObserver<RateLaptopRequest>() {
+    public void downloadImage(DownloadImageRequest request, StreamObserver<DownloadImageResponse> responseObserver){
+        ImageMetadata metadata = imageStore.find(request.getImageId());
+        if(metadata == null){
+            responseObserver.onError(Status.NOT_FOUND
+                    .withDescription("image id does not exists").asRuntimeException());
+            return;
+        }
+
+        // the requested range is memory mapped and sent as slices of the mapping,
+        // the file content is never copied onto the heap
+        long size;
+        MappedByteBuffer region;
+        try(FileChannel channel = FileChannel.open(Paths.get(metadata.getPath()), StandardOpenOption.READ)){
+            size = channel.size();
+            long offset = request.getOffset();
+            if(offset < 0 || offset > size){
+                responseObserver.onError(Status.OUT_OF_RANGE
+                        .withDescription("offset is out of the image").asRuntimeException());
+                return;
+            }
+            long length = size - offset;
+            if(request.getLength() > 0 && request.getLength() < length){
+                length = request.getLength();
+            }
+            region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }catch (IOException e){
+            responseObserver.onError(Status.INTERNAL
+                    .withDescription("cannot read image " + e.getMessage()).asRuntimeException());
+            return;
+        }
+
+        DownloadImageInfo info = DownloadImageInfo.newBuilder()
+                .setLaptopId(metadata.getLaptopID())
+                .setImageType(metadata.getType())
+                .setSize(size)
+                .setOffset(request.getOffset())
+                .setLength(region.remaining())
+                .build();
+        ServerCallStreamObserver<DownloadImageResponse> serverObserver =
+                (ServerCallStreamObserver<DownloadImageResponse>) responseObserver;
+        serverObserver.onNext(DownloadImageResponse.newBuilder().setInfo(info).build());
+
+        // chunks are only produced while the transport can take them, so concurrent
+        // downloads hold at most one flow control window each
+        serverObserver.setOnCancelHandler(() -> logger.info("download image is cancelled"));
+        serverObserver.setOnReadyHandler(new Runnable() {
+            private boolean completed;
+
             @Override
-            public void onNext(RateLaptopRequest request) {
-                String laptopID = request.getLaptopId();
-                double score = request.getScore();
-
-                logger.info("received rate-laptop request : id = " + laptopID + " score " + score );
-                Laptop found = laptopStore.find(laptopID);
-                if(found == null){
-                    responseObserver.onError(Status.NOT_FOUND
-                            .withDescription("laptop not found ").asRuntimeException());
-                    return;
+            public void run() {
+                while(!completed && serverObserver.isReady()){
+                    int n = Math.min(DOWNLOAD_CHUNK_SIZE, region.remaining());
+                    if(n == 0){
+                        completed = true;
+                        serverObserver.onCompleted();
+                        return;
+                    }
+                    ByteBuffer chunk = region.slice(region.position(), n);
+                    region.position(region.position() + n);
+                    serverObserver.onNext(DownloadImageResponse.newBuilder()
+                            .setChunkData(UnsafeByteOperations.unsafeWrap(chunk))
+                            .build());
                 }
-                Rating rating = ratingStore.add(laptopID, score);
+            }
+        });
+    }
+
+    @Override
+    public StreamObserver<RateLaptopRequest> rateLaptop(StreamObserver<RateLaptopResponse> responseObserver){
+        ServerCallStreamObserver<RateLaptopResponse> serverObserver =
+                (ServerCallStreamObserver<RateLaptopResponse>) responseObserver;
+        // at most one batch of requests is buffered, the next one is requested once it is handled
+        serverObserver.disableAutoRequest();
+        RateLaptopBatcher batcher = new RateLaptopBatcher(serverObserver);
+        serverObserver.request(rateBatchSize);
+        return batcher;
+    }
+
+    @Override
+    public void topRatedLaptops(TopRatedLaptopsRequest request, StreamObserver<TopRatedLaptopsResponse> responseObserver){
+        int k = request.getK() == 0 ? DEFAULT_TOP_K : request.getK();
+        if(k < 0 || k > MAX_TOP_K || request.getMinRatedCount() < 0){
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("k must be at most " + MAX_TOP_K + " and min_rated_count below 2^31").asRuntimeException());
+            return;
+        }
+        if(leaderboard == null){
+            responseObserver.onError(Status.UNIMPLEMENTED
+                    .withDescription("this server keeps no leaderboard").asRuntimeException());
+            return;
+        }
+        List<RatingEntry> top = leaderboard.top(k, request.getMinRatedCount());
+        TopRatedLaptopsResponse.Builder response = TopRatedLaptopsResponse.newBuilder();
+        for(RatingEntry entry : top){
+            response.addLaptops(RatedLaptop.newBuilder()
+                    .setLaptopId(entry.getLaptopID())
+                    .setRatedCount(entry.getRating().getCount())
+                    .setAverageScore(entry.getAverage()));
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void ratingDistribution(RatingDistributionRequest request, StreamObserver<RatingDistributionResponse> responseObserver){
+        String laptopID = request.getLaptopId();
+        if(distributions == null){
+            responseObserver.onError(Status.UNIMPLEMENTED
+                    .withDescription("this server keeps no rating distributions").asRuntimeException());
+            return;
+        }
+        RatingSketch sketch = distributions.distribution(laptopID);
+        if(sketch == null){
+            responseObserver.onError(Status.NOT_FOUND
+                    .withDescription("laptop " + laptopID + " has no ratings").asRuntimeException());
+            return;
+        }
+        // the sketch may only hold the ratings since the server started, the rating has them all
+        Rating rating = ratingStore.find(laptopID);
+        RatingDistributionResponse.Builder response = RatingDistributionResponse.newBuilder()
+                .setLaptopId(laptopID)
+                .setRatedCount(sketch.getCount())
+                .setTotalRatedCount(rating == null ? sketch.getCount() : rating.getCount())
+                .setP10(sketch.quantile(0.1))
+                .setMedian(sketch.quantile(0.5))
+                .setP90(sketch.quantile(0.9));
+        for(long count : sketch.histogram()){
+            response.addHistogram(count);
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    // collects rate-laptop requests into batches: one existence lookup and one rating update
+    // per laptop per batch, then one response per request in request order. the responses
+    // are written back to back so the transport can flush them together.
+    // rateTimer is shared by every stream and only signals that a linger expired: the flush
+    // it stands for runs on searchExecutor, so one slow store or client does not hold up
+    // the other streams' batches. gRPC does not hand a service the call's own executor
+    private class RateLaptopBatcher implements StreamObserver<RateLaptopRequest> {
+        private final ServerCallStreamObserver<RateLaptopResponse> responseObserver;
+        private final List<RateLaptopRequest> pending;
+        private ScheduledFuture<?> linger;
+        // batches flushed so far, a linger that expires after its batch was flushed is ignored
+        private long flushed;
+        private boolean closed;
+
+        RateLaptopBatcher(ServerCallStreamObserver<RateLaptopResponse> responseObserver){
+            this.responseObserver = responseObserver;
+            this.pending = new ArrayList<>(rateBatchSize);
+        }
+
+        @Override
+        public synchronized void onNext(RateLaptopRequest request) {
+            if(closed){
+                return;
+            }
+            pending.add(request);
+            if(pending.size() >= rateBatchSize || rateLingerMillis == 0){
+                flush();
+            }else if(linger == null){
+                long batch = flushed;
+                linger = rateTimer.schedule(() -> searchExecutor.execute(() -> lingerExpired(batch)),
+                        rateLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            closed = true;
+            cancelLinger();
+            pending.clear();
+            logger.warning(t.getMessage());
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            if(closed){
+                return;
+            }
+            flush();
+            if(!closed){
+                closed = true;
+                responseObserver.onCompleted();
+            }
+        }
+
+        private synchronized void lingerExpired(long batch){
+            if(batch != flushed){
+                return;
+            }
+            linger = null;
+            if(!closed){
+                flush();
+            }
+        }
+
+        private void cancelLinger(){
+            if(linger != null){
+                linger.cancel(false);
+                linger = null;
+            }
+        }
+
+        private void flush(){
+            cancelLinger();
+            int n = pending.size();
+            if(n == 0){
+                return;
+            }
+            flushed++;
+            try{
+                rate();
+            }catch (RuntimeException e){
+                closed = true;
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+            pending.clear();
+            if(!closed){
+                responseObserver.request(n);
+            }
+        }
+
+        private void rate(){
+            List<String> laptopIDs = new ArrayList<>(pending.size());
+            for(RateLaptopRequest request : pending){
+                laptopIDs.add(request.getLaptopId());
+            }
+            Set<String> existing = laptopStore.existing(laptopIDs);
+            // requests after the first unknown laptop are dropped, as the stream ends there
+            int valid = 0;
+            while(valid < pending.size() && existing.contains(laptopIDs.get(valid))){
+                valid++;
+            }
+
+            // the scores of the batch per laptop, in request order
+            Map<String, BatchScores> scores = new HashMap<>();
+            for (int i = 0; i < valid; i++) {
+                scores.computeIfAbsent(laptopIDs.get(i), id -> new BatchScores()).add(pending.get(i).getScore());
+            }
+            for(Map.Entry<String, BatchScores> entry : scores.entrySet()){
+                BatchScores batch = entry.getValue();
+                Rating rating = ratingStore.add(entry.getKey(), batch.toArray());
+                // rewinds to the rating before the batch, the responses add their scores back
+                batch.count = rating.getCount() - batch.size;
+                batch.total = rating.getSum() - batch.sum;
+            }
+
+            for (int i = 0; i < valid; i++) {
+                BatchScores batch = scores.get(laptopIDs.get(i));
+                double score = pending.get(i).getScore();
+                batch.count++;
+                batch.total += score;
+                accessLog.log(AccessLog.Event.RATE, laptopIDs.get(i), score);
                 RateLaptopResponse response = RateLaptopResponse.newBuilder()
-                        .setLaptopId(laptopID)
-                        .setRatedCount(rating.getCount())
-                        .setAverageScore(rating.getSum()/rating.getCount())
+                        .setLaptopId(laptopIDs.get(i))
+                        .setRatedCount(batch.count)
+                        .setAverageScore(batch.total / batch.count)
                         .build();
                 responseObserver.onNext(response);
             }
-
-            @Override
-            public void onError(Throwable t) {
-                logger.warning(t.getMessage());
+            if(valid < pending.size()){
+                closed = true;
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("laptop not found ").asRuntimeException());
             }
+        }
+    }
 
-            @Override
-            public void onCompleted() {
-                responseObserver.onCompleted();
+    // the scores one laptop got in a rate batch, kept unboxed, and its running rating
+    // while the batch's responses are written
+    private static class BatchScores {
+        private double[] scores = new double[4];
+        private int size;
+        private double sum;
+        private int count;
+        private double total;
+
+        void add(double score){
+            if(size == scores.length){
+                scores = Arrays.copyOf(scores, size << 1);
             }
-        };
+            scores[size++] = score;
+            sum += score;
+        }
+
+        double[] toArray(){
+            return size == scores.length ? scores : Arrays.copyOf(scores, size);
+        }
     }
 }
@@ -4,11 +4,48 @@ import com.xizhang.rpc.grpc.pcbook.pb.Filter;
 import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
 import io.grpc.Context;
 
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// laptops are immutable protobuf messages: stores keep the saved instance and hand the
+// same instance back from find and search instead of copying it
 public interface LaptopStore {
     void save(Laptop laptop);
 
+    // saves a batch of laptops and returns the indexes of those whose ID already
+    // existed, which are skipped
+    default BitSet saveAll(List<Laptop> laptops){
+        BitSet existing = new BitSet();
+        for (int i = 0; i < laptops.size(); i++) {
+            try{
+                save(laptops.get(i));
+            }catch (AlreadyExistsException e){
+                existing.set(i);
+            }
+        }
+        return existing;
+    }
+
     Laptop find(String id);
 
+    // returns the IDs among ids that belong to saved laptops, one call per batch of IDs
+    default Set<String> existing(Collection<String> ids){
+        Set<String> existing = new HashSet<>();
+        for(String id : ids){
+            if(find(id) != null){
+                existing.add(id);
+            }
+        }
+        return existing;
+    }
+
     void search(Context ctx, Filter filter, LaptopStream stream);
-}
 
+    // sends at most limit (> 0) laptops stored after position `after` (-1 for the start), in
+    // storage order. returns the position to pass as `after` for the next page,
+    // or -1 when no more laptops match
+    long search(Context ctx, Filter filter, long after, int limit, LaptopStream stream);
+}
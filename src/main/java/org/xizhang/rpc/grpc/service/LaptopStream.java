@@ -1,7 +1,14 @@
 package org.xizhang.rpc.grpc.service;
 
+import com.google.protobuf.ByteString;
 import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
 
 public interface LaptopStream{
     void send(Laptop laptop);
+
+    // stores that keep the wire bytes of a laptop pass them along, so streams that
+    // write raw bytes can skip serializing the laptop again
+    default void send(Laptop laptop, ByteString serialized){
+        send(laptop);
+    }
 }
@@ -0,0 +1,128 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import com.xizhang.rpc.grpc.pcbook.pb.WatchLaptopsResponse;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// standing filters of WatchLaptops calls, matched against published laptops through a
+// FilterIndex so that a laptop that few watches want does not visit every watch.
+// publish only queues the laptop on the matching watches; each watch drains its bounded
+// queue on executor as its call becomes ready, so creating a laptop never waits on a
+// watcher's transport. a watch that falls a whole queue behind is ended with
+// RESOURCE_EXHAUSTED rather than buffering without end
+public class LaptopWatchRegistry {
+    private final FilterIndex<Watch> watches;
+    private final Executor executor;
+
+    public LaptopWatchRegistry(Executor executor){
+        this.watches = new FilterIndex<>();
+        this.executor = executor;
+    }
+
+    // must be called before the service method returns, like FlowControlledObserver.
+    // the watch lasts until the client cancels or the queue overflows
+    public void watch(Filter filter, ServerCallStreamObserver<WatchLaptopsResponse> observer, int queueSize){
+        if(queueSize < 1){
+            throw new IllegalArgumentException("invalid queue size " + queueSize);
+        }
+        Watch watch = new Watch(observer, executor, queueSize);
+        observer.setOnReadyHandler(watch::schedule);
+        observer.setOnCancelHandler(() -> watches.remove(watch));
+        watches.add(filter, watch);
+    }
+
+    // queues the laptop on every watch whose filter it matches, without waiting for any of them
+    public void publish(Laptop laptop){
+        WatchLaptopsResponse[] response = new WatchLaptopsResponse[1];
+        watches.forEachMatch(laptop, watch -> {
+            if(response[0] == null){
+                response[0] = WatchLaptopsResponse.newBuilder().setLaptop(laptop).build();
+            }
+            if(!watch.offer(response[0])){
+                watches.remove(watch);
+            }
+        });
+    }
+
+    public int size(){
+        return watches.size();
+    }
+
+    private static class Watch {
+        private final ServerCallStreamObserver<WatchLaptopsResponse> observer;
+        private final Executor executor;
+        private final int queueSize;
+        private final Queue<WatchLaptopsResponse> queue;
+        // laptops offered and not sent yet, may briefly run past queueSize on overflow
+        private final AtomicInteger queued;
+        // drains asked for, the one that raises it from 0 runs them all, so only one
+        // thread at a time uses observer
+        private final AtomicInteger pending;
+        private volatile boolean overflowed;
+        // only used by the drain
+        private boolean closed;
+
+        Watch(ServerCallStreamObserver<WatchLaptopsResponse> observer, Executor executor, int queueSize){
+            this.observer = observer;
+            this.executor = executor;
+            this.queueSize = queueSize;
+            this.queue = new ConcurrentLinkedQueue<>();
+            this.queued = new AtomicInteger();
+            this.pending = new AtomicInteger();
+        }
+
+        // returns false once the watch overflowed
+        boolean offer(WatchLaptopsResponse response){
+            if(overflowed){
+                return false;
+            }
+            if(queued.incrementAndGet() > queueSize){
+                overflowed = true;
+                schedule();
+                return false;
+            }
+            queue.add(response);
+            schedule();
+            return true;
+        }
+
+        void schedule(){
+            if(pending.getAndIncrement() == 0){
+                executor.execute(this::drain);
+            }
+        }
+
+        // sends queued laptops while the client keeps up, the rest wait for the next onReady
+        private void drain(){
+            int missed = 1;
+            do{
+                if(!closed){
+                    if(overflowed){
+                        closed = true;
+                        queue.clear();
+                        observer.onError(Status.RESOURCE_EXHAUSTED
+                                .withDescription("watcher fell " + queueSize + " laptops behind")
+                                .asRuntimeException());
+                    }else if(observer.isCancelled()){
+                        closed = true;
+                        queue.clear();
+                    }else{
+                        WatchLaptopsResponse response;
+                        while(observer.isReady() && (response = queue.poll()) != null){
+                            queued.decrementAndGet();
+                            observer.onNext(response);
+                        }
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+            }while(missed != 0);
+        }
+    }
+}
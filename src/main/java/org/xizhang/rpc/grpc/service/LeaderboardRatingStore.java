@@ -0,0 +1,92 @@
+package org.xizhang.rpc.grpc.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+// keeps a leaderboard of laptops ordered by average score next to a rating store.
+// every add moves the laptop's entry in a concurrent sorted set, O(log n), under the lock
+// the entries map holds for that laptop only, so ratings of different laptops never wait
+// on each other. top walks the set without locking: a moved laptop is put in its new place
+// before it leaves the old one and readers skip a laptop they have already taken, so a
+// reader sees each laptop at most once; one that moves up past the reader while it reads
+// can be missed by that read
+public class LeaderboardRatingStore implements RatingStore, RatingLeaderboard {
+    // best average first, then most ratings, then laptop ID so that entries are unique
+    private static final Comparator<RatingEntry> ORDER = Comparator
+            .comparingDouble(RatingEntry::getAverage).reversed()
+            .thenComparing(entry -> entry.getRating().getCount(), Comparator.reverseOrder())
+            .thenComparing(RatingEntry::getLaptopID);
+
+    private final RatingStore ratingStore;
+    private final ConcurrentSkipListSet<RatingEntry> leaderboard;
+    private final ConcurrentMap<String, RatingEntry> entries;
+
+    public LeaderboardRatingStore(RatingStore ratingStore){
+        this.ratingStore = ratingStore;
+        this.leaderboard = new ConcurrentSkipListSet<>(ORDER);
+        this.entries = new ConcurrentHashMap<>();
+        ratingStore.forEach(this::update);
+    }
+
+    @Override
+    public Rating add(String laptopID, double score) {
+        Rating rating = ratingStore.add(laptopID, score);
+        update(laptopID, rating);
+        return rating;
+    }
+
+    @Override
+    public Rating add(String laptopID, double[] scores) {
+        Rating rating = ratingStore.add(laptopID, scores);
+        update(laptopID, rating);
+        return rating;
+    }
+
+    @Override
+    public Rating find(String laptopID) {
+        return ratingStore.find(laptopID);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Rating> action) {
+        ratingStore.forEach(action);
+    }
+
+    @Override
+    public List<RatingEntry> top(int k, int minCount) {
+        List<RatingEntry> top = new ArrayList<>(Math.min(k, 64));
+        Set<String> taken = new HashSet<>();
+        Iterator<RatingEntry> iterator = leaderboard.iterator();
+        while(top.size() < k && iterator.hasNext()){
+            RatingEntry entry = iterator.next();
+            if(entry.getRating().getCount() >= minCount && taken.add(entry.getLaptopID())){
+                top.add(entry);
+            }
+        }
+        return top;
+    }
+
+    private void update(String laptopID, Rating rating){
+        entries.compute(laptopID, (id, current) -> {
+            // adds of the same laptop can finish out of order, a rating with fewer
+            // ratings in it is older and must not replace a newer one
+            if(current != null && current.getRating().getCount() >= rating.getCount()){
+                return current;
+            }
+            RatingEntry entry = new RatingEntry(laptopID, rating);
+            leaderboard.add(entry);
+            if(current != null){
+                leaderboard.remove(current);
+            }
+            return entry;
+        });
+    }
+}
@@ -0,0 +1,407 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import io.grpc.Context;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// durable laptop store: every saved laptop is appended as a length delimited, checksummed
+// record to a segment log before save returns, and the in-memory store serves all reads.
+// a laptop only becomes visible to reads once its record is synced, so nothing is served
+// that a restart would lose. saves that arrive while the log is being synced are written
+// and synced together (group commit), so one fsync is paid per batch rather than per laptop.
+// on startup the segments are replayed into the in-memory store
+public class LogStructuredLaptopStore implements LaptopStore, Closeable {
+    private static final Logger logger = Logger.getLogger(LogStructuredLaptopStore.class.getName());
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final PendingWrite CLOSE = new PendingWrite(null);
+
+    private final LaptopStore index;
+    private final Path directory;
+    private final int maxBatchSize;
+    private final long segmentSize;
+    private final BlockingQueue<PendingWrite> queue;
+    // IDs whose records are being written, claimed so that a concurrent save of the same ID
+    // fails without writing a duplicate record
+    private final Set<String> pending;
+    private final Thread committer;
+    // guarded by queue, so that no write is queued behind CLOSE
+    private boolean closed;
+    private long segmentNumber;
+    private FileChannel segment;
+
+    public LogStructuredLaptopStore(Path directory) throws IOException {
+        this(directory, new InMemoryLaptopStore(), 256, 64L << 20);
+    }
+
+    // maxBatchSize caps the number of records per fsync, segmentSize is the size at
+    // which the log rolls over to a new segment file
+    public LogStructuredLaptopStore(Path directory, LaptopStore index, int maxBatchSize, long segmentSize) throws IOException {
+        if(maxBatchSize < 1){
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.index = index;
+        this.directory = directory;
+        this.maxBatchSize = maxBatchSize;
+        this.segmentSize = segmentSize;
+        this.queue = new LinkedBlockingQueue<>();
+        this.pending = ConcurrentHashMap.newKeySet();
+
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        int count = recover();
+        logger.info("recovered " + count + " laptops in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        openSegment(segmentNumber + 1);
+
+        committer = new Thread(this::commitLoop, "laptop-log-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @Override
+    public void save(Laptop laptop) {
+        String id = laptop.getId();
+        // claimed before looking at the index: a save that already published the ID did so
+        // before releasing its claim
+        if(!pending.add(id)){
+            throw new AlreadyExistsException("LAPTOP id has already exists");
+        }
+        try{
+            if(index.find(id) != null){
+                throw new AlreadyExistsException("LAPTOP id has already exists");
+            }
+            PendingWrite write = new PendingWrite(record(laptop));
+            enqueue(List.of(write));
+            try{
+                write.done.join();
+            }catch (CompletionException e){
+                throw new IllegalStateException("cannot persist laptop " + id, e.getCause());
+            }
+            index.save(laptop);
+        }finally {
+            pending.remove(id);
+        }
+    }
+
+    // the whole batch is queued before waiting, so it is written with as few fsyncs as
+    // maxBatchSize allows
+    @Override
+    public BitSet saveAll(List<Laptop> laptops) {
+        BitSet existing = new BitSet();
+        List<Laptop> claimed = new ArrayList<>(laptops.size());
+        try{
+            for (int i = 0; i < laptops.size(); i++) {
+                Laptop laptop = laptops.get(i);
+                if(!pending.add(laptop.getId())){
+                    existing.set(i);
+                }else{
+                    claimed.add(laptop);
+                }
+            }
+            Set<String> stored = index.existing(claimed.stream().map(Laptop::getId).toList());
+            List<Laptop> saved = new ArrayList<>(claimed.size());
+            List<PendingWrite> writes = new ArrayList<>(claimed.size());
+            for (int i = existing.nextClearBit(0), j = 0; i < laptops.size(); i = existing.nextClearBit(i + 1), j++) {
+                Laptop laptop = claimed.get(j);
+                if(stored.contains(laptop.getId())){
+                    existing.set(i);
+                    continue;
+                }
+                saved.add(laptop);
+                writes.add(new PendingWrite(record(laptop)));
+            }
+            enqueue(writes);
+            try{
+                CompletableFuture.allOf(writes.stream().map(write -> write.done).toArray(CompletableFuture[]::new)).join();
+            }catch (CompletionException e){
+                throw new IllegalStateException("cannot persist laptops", e.getCause());
+            }
+            index.saveAll(saved);
+        }finally {
+            for(Laptop laptop : claimed){
+                pending.remove(laptop.getId());
+            }
+        }
+        return existing;
+    }
+
+    @Override
+    public Laptop find(String id) {
+        return index.find(id);
+    }
+
+    @Override
+    public Set<String> existing(Collection<String> ids) {
+        return index.existing(ids);
+    }
+
+    @Override
+    public void search(Context ctx, Filter filter, LaptopStream stream) {
+        index.search(ctx, filter, stream);
+    }
+
+    @Override
+    public long search(Context ctx, Filter filter, long after, int limit, LaptopStream stream) {
+        return index.search(ctx, filter, after, limit, stream);
+    }
+
+    // waits for the pending saves to be synced and closes the log, later saves fail
+    @Override
+    public void close() throws IOException {
+        synchronized (queue){
+            if(closed){
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        try{
+            committer.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+
+    private void enqueue(List<PendingWrite> writes){
+        synchronized (queue){
+            if(closed){
+                throw new IllegalStateException("laptop store is closed");
+            }
+            queue.addAll(writes);
+        }
+    }
+
+    // record: varint payload length, the laptop, u32 crc of the laptop bytes
+    private static ByteBuffer record(Laptop laptop){
+        int size = laptop.getSerializedSize();
+        int header = CodedOutputStream.computeUInt32SizeNoTag(size);
+        byte[] record = new byte[header + size + 4];
+        CodedOutputStream output = CodedOutputStream.newInstance(record, 0, header + size);
+        try{
+            output.writeUInt32NoTag(size);
+            laptop.writeTo(output);
+            output.checkNoSpaceLeft();
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, header, size);
+        return ByteBuffer.wrap(record).putInt(header + size, (int) crc.getValue());
+    }
+
+    private void commitLoop(){
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        boolean closing = false;
+        while(!closing){
+            try{
+                batch.add(queue.take());
+            }catch (InterruptedException e){
+                return;
+            }
+            // everything that queued up during the previous fsync goes into this one
+            queue.drainTo(batch, maxBatchSize - 1);
+            if(batch.remove(CLOSE)){
+                closing = true;
+            }
+            if(!batch.isEmpty()){
+                commit(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<PendingWrite> batch){
+        ByteBuffer[] records = new ByteBuffer[batch.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = batch.get(i).record;
+        }
+        long start = -1;
+        long end;
+        try{
+            start = segment.position();
+            long remaining = 0;
+            for(ByteBuffer record : records){
+                remaining += record.remaining();
+            }
+            while(remaining > 0){
+                remaining -= segment.write(records);
+            }
+            segment.force(false);
+            end = segment.position();
+        }catch (IOException e){
+            // cut off a partly written batch so later batches do not follow a broken record
+            if(start >= 0){
+                try{
+                    segment.truncate(start);
+                    segment.position(start);
+                }catch (IOException truncateFailure){
+                    e.addSuppressed(truncateFailure);
+                }
+            }
+            for(PendingWrite write : batch){
+                write.done.completeExceptionally(e);
+            }
+            return;
+        }
+        // the batch is synced, whatever happens to the rollover
+        for(PendingWrite write : batch){
+            write.done.complete(null);
+        }
+        if(end >= segmentSize){
+            rollOver();
+        }
+    }
+
+    // the full segment stays open until the next one is, so a failed rollover leaves the log
+    // on the current segment, which grows past segmentSize until a later batch rolls it over
+    private void rollOver(){
+        FileChannel previous = segment;
+        try{
+            openSegment(segmentNumber + 1);
+        }catch (IOException e){
+            logger.warning("cannot roll over to segment " + (segmentNumber + 1) + ": " + e.getMessage());
+            return;
+        }
+        try{
+            previous.close();
+        }catch (IOException e){
+            // its records were synced before it was closed
+            logger.warning("cannot close segment " + (segmentNumber - 1) + ": " + e.getMessage());
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        segment = FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentNumber = number;
+        // make the new file itself durable
+        try(FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)){
+            dir.force(true);
+        }catch (IOException e){
+            // not every platform can sync a directory
+        }
+    }
+
+    private Path segmentPath(long number){
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    // replays every segment in order through a memory mapped reader.
+    // a record cut short or left zero filled by a crash can only be at the end of the last
+    // segment: the log is cut at the first record whose length or checksum is off
+    private int recover() throws IOException {
+        List<Path> segments;
+        try(Stream<Path> files = Files.list(directory)){
+            segments = files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+
+        int count = 0;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            String name = path.getFileName().toString();
+            segmentNumber = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                long size = channel.size();
+                if(size == 0){
+                    continue;
+                }
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int end = 0;
+                Laptop laptop;
+                while(end < size && (laptop = readRecord(mapped, end, crc)) != null){
+                    end = mapped.position();
+                    try{
+                        index.save(laptop);
+                        count++;
+                    }catch (AlreadyExistsException e){
+                        // the first record of an ID wins
+                    }
+                }
+                if(end < size){
+                    if(i != segments.size() - 1){
+                        throw new IOException("corrupted laptop log segment " + path + " at " + end);
+                    }
+                    logger.warning("truncating torn record at " + path + ":" + end);
+                    channel.truncate(end);
+                    channel.force(true);
+                }
+            }
+        }
+        return count;
+    }
+
+    // reads the record at position and leaves the buffer after it. returns null for a record
+    // that is cut short, empty, or fails its checksum
+    private static Laptop readRecord(MappedByteBuffer buffer, int position, CRC32 crc){
+        int length = 0;
+        int shift = 0;
+        int offset = position;
+        while(true){
+            if(offset == buffer.limit() || shift == 35){
+                return null;
+            }
+            byte b = buffer.get(offset++);
+            length |= (b & 0x7F) << shift;
+            if(b >= 0){
+                break;
+            }
+            shift += 7;
+        }
+        // a laptop always has an ID, a zero length is the zero filled tail of a crashed write
+        if(length <= 0 || length > buffer.limit() - offset - 4){
+            return null;
+        }
+        crc.reset();
+        crc.update(buffer.slice(offset, length));
+        if((int) crc.getValue() != buffer.getInt(offset + length)){
+            return null;
+        }
+        try{
+            Laptop laptop = Laptop.parseFrom(buffer.slice(offset, length));
+            buffer.position(offset + length + 4);
+            return laptop;
+        }catch (InvalidProtocolBufferException e){
+            return null;
+        }
+    }
+
+    private static class PendingWrite {
+        private final ByteBuffer record;
+        private final CompletableFuture<Void> done;
+
+        PendingWrite(ByteBuffer record){
+            this.record = record;
+            this.done = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.GetMetricsResponse;
+import com.xizhang.rpc.grpc.pcbook.pb.MethodMetrics;
+import com.xizhang.rpc.grpc.pcbook.pb.StatusCount;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// counts calls, status codes, in flight calls and messages per method, and records call
+// latencies. the call path only touches LongAdders and an HdrHistogram Recorder, which are
+// lock free and do not allocate, so calls on different threads do not contend
+public class MetricsServerInterceptor implements ServerInterceptor {
+    private static final Status.Code[] CODES = Status.Code.values();
+
+    private final ConcurrentMap<String, Metrics> methods = new ConcurrentHashMap<>();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String method = call.getMethodDescriptor().getFullMethodName();
+        Metrics metrics = methods.get(method);
+        if(metrics == null){
+            metrics = methods.computeIfAbsent(method, name -> new Metrics());
+        }
+        metrics.started.increment();
+        metrics.inFlight.increment();
+
+        MeteredCall<ReqT, RespT> meteredCall = new MeteredCall<>(call, metrics);
+        ServerCall.Listener<ReqT> listener;
+        try{
+            listener = next.startCall(meteredCall, headers);
+        }catch (RuntimeException e){
+            meteredCall.finish(Status.Code.UNKNOWN);
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                meteredCall.metrics.received.increment();
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                // a cancelled call is not closed by the service
+                meteredCall.finish(Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+
+    // one entry per method called so far, sorted by method name
+    public GetMetricsResponse snapshot(){
+        List<MethodMetrics> snapshot = new ArrayList<>(methods.size());
+        methods.forEach((method, metrics) -> snapshot.add(metrics.snapshot(method)));
+        snapshot.sort(Comparator.comparing(MethodMetrics::getMethod));
+        return GetMetricsResponse.newBuilder().addAllMethods(snapshot).build();
+    }
+
+    private static class Metrics {
+        final LongAdder started = new LongAdder();
+        final LongAdder finished = new LongAdder();
+        final LongAdder inFlight = new LongAdder();
+        final LongAdder received = new LongAdder();
+        final LongAdder sent = new LongAdder();
+        final LongAdder[] statusCounts = new LongAdder[CODES.length];
+        // latencies in nanoseconds, three significant digits
+        final Recorder latency = new Recorder(3);
+        // everything taken out of the recorder so far, guarded by this
+        private final Histogram total = new Histogram(3);
+        private Histogram interval;
+
+        Metrics(){
+            for (int i = 0; i < statusCounts.length; i++) {
+                statusCounts[i] = new LongAdder();
+            }
+        }
+
+        void finish(Status.Code code, long nanos){
+            latency.recordValue(nanos);
+            statusCounts[code.ordinal()].increment();
+            inFlight.decrement();
+            finished.increment();
+        }
+
+        synchronized MethodMetrics snapshot(String method){
+            interval = latency.getIntervalHistogram(interval);
+            total.add(interval);
+
+            MethodMetrics.Builder builder = MethodMetrics.newBuilder()
+                    .setMethod(method)
+                    .setStarted(started.sum())
+                    .setFinished(finished.sum())
+                    .setInFlight(inFlight.sum())
+                    .setMessagesReceived(received.sum())
+                    .setMessagesSent(sent.sum())
+                    .setLatencyMean(total.getMean() / 1000)
+                    .setLatencyP50(total.getValueAtPercentile(50) / 1000.0)
+                    .setLatencyP90(total.getValueAtPercentile(90) / 1000.0)
+                    .setLatencyP99(total.getValueAtPercentile(99) / 1000.0)
+                    .setLatencyP999(total.getValueAtPercentile(99.9) / 1000.0)
+                    .setLatencyMax(total.getMaxValue() / 1000.0);
+            for (int i = 0; i < CODES.length; i++) {
+                long count = statusCounts[i].sum();
+                if(count > 0){
+                    builder.addStatusCounts(StatusCount.newBuilder().setCode(CODES[i].name()).setCount(count));
+                }
+            }
+            return builder.build();
+        }
+    }
+
+    private static class MeteredCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+        private final Metrics metrics;
+        private final long start;
+        // a call is closed or cancelled, sometimes both, it is only counted once
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        MeteredCall(ServerCall<ReqT, RespT> call, Metrics metrics){
+            super(call);
+            this.metrics = metrics;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            metrics.sent.increment();
+            super.sendMessage(message);
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            finish(status.getCode());
+            super.close(status, trailers);
+        }
+
+        void finish(Status.Code code){
+            if(finished.compareAndSet(false, true)){
+                metrics.finish(code, System.nanoTime() - start);
+            }
+        }
+    }
+}
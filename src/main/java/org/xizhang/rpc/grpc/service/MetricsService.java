@@ -0,0 +1,22 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.GetMetricsRequest;
+import com.xizhang.rpc.grpc.pcbook.pb.GetMetricsResponse;
+import com.xizhang.rpc.grpc.pcbook.pb.MetricsServiceGrpc;
+import io.grpc.stub.StreamObserver;
+
+// admin service serving the metrics of a MetricsServerInterceptor, e.g.
+// grpcurl -d '{}' localhost:8080 MetricsService/GetMetrics
+public class MetricsService extends MetricsServiceGrpc.MetricsServiceImplBase {
+    private final MetricsServerInterceptor metrics;
+
+    public MetricsService(MetricsServerInterceptor metrics){
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void getMetrics(GetMetricsRequest request, StreamObserver<GetMetricsResponse> responseObserver) {
+        responseObserver.onNext(metrics.snapshot());
+        responseObserver.onCompleted();
+    }
+}
@@ -17,6 +17,14 @@ public class Rating {
         return sum;
     }
 
+    public static Rating of(double[] scores){
+        double sum = 0;
+        for(double score : scores){
+            sum += score;
+        }
+        return new Rating(scores.length, sum);
+    }
+
     public static Rating add(Rating r1, Rating r2){
         return new Rating(r1.count + r2.count, r1.sum + r2.sum);
     }
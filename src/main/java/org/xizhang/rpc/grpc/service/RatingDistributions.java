@@ -0,0 +1,7 @@
+package org.xizhang.rpc.grpc.service;
+
+// per laptop score distributions, kept by a component that watches the ratings
+public interface RatingDistributions {
+    // the score distribution of a laptop, null when it was not rated
+    RatingSketch distribution(String laptopID);
+}
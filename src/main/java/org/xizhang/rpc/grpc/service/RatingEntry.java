@@ -0,0 +1,23 @@
+package org.xizhang.rpc.grpc.service;
+
+public class RatingEntry {
+    private String laptopID;
+    private Rating rating;
+
+    public RatingEntry(String laptopID, Rating rating) {
+        this.laptopID = laptopID;
+        this.rating = rating;
+    }
+
+    public String getLaptopID() {
+        return laptopID;
+    }
+
+    public Rating getRating() {
+        return rating;
+    }
+
+    public double getAverage() {
+        return rating.getSum() / rating.getCount();
+    }
+}
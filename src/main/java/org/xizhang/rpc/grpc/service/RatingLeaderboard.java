@@ -0,0 +1,9 @@
+package org.xizhang.rpc.grpc.service;
+
+import java.util.List;
+
+// laptops ranked by average score, kept by a component that watches the ratings
+public interface RatingLeaderboard {
+    // the k laptops with the best average score among those rated at least minCount times
+    List<RatingEntry> top(int k, int minCount);
+}
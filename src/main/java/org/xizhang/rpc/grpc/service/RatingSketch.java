@@ -0,0 +1,81 @@
+package org.xizhang.rpc.grpc.service;
+
+// distribution of the scores of one laptop: a histogram over [1, 10] in bins of 1/8,
+// 72 counters whatever the number of ratings. scores outside [1, 10] are counted as 1 or 10.
+// quantiles are reported as bin midpoints, so they are at most 1/16 away from the exact
+// (nearest rank) quantile of the scores. sketches merge by adding their counters
+public class RatingSketch {
+    public static final int MIN_SCORE = 1;
+    public static final int MAX_SCORE = 10;
+    private static final int BINS_PER_POINT = 8;
+    private static final int BINS = (MAX_SCORE - MIN_SCORE) * BINS_PER_POINT;
+
+    private final int[] bins;
+    private long count;
+
+    public RatingSketch(){
+        bins = new int[BINS];
+    }
+
+    private RatingSketch(int[] bins, long count){
+        this.bins = bins;
+        this.count = count;
+    }
+
+    public synchronized void add(double score){
+        bins[bin(score)]++;
+        count++;
+    }
+
+    public void merge(RatingSketch other){
+        RatingSketch copy = other.copy();
+        synchronized (this){
+            for (int i = 0; i < BINS; i++) {
+                bins[i] += copy.bins[i];
+            }
+            count += copy.count;
+        }
+    }
+
+    public synchronized RatingSketch copy(){
+        return new RatingSketch(bins.clone(), count);
+    }
+
+    public synchronized long getCount(){
+        return count;
+    }
+
+    // q in [0, 1]; NaN when the sketch is empty
+    public synchronized double quantile(double q){
+        if(count == 0){
+            return Double.NaN;
+        }
+        long rank = Math.max(1, Math.min(count, (long) Math.ceil(q * count)));
+        long seen = 0;
+        for (int i = 0; i < BINS; i++) {
+            seen += bins[i];
+            if(seen >= rank){
+                return MIN_SCORE + (i + 0.5) / BINS_PER_POINT;
+            }
+        }
+        return MAX_SCORE;
+    }
+
+    // number of ratings per whole score 1 to 10, a score counts for the nearest whole score.
+    // the boundaries at x.5 fall on bin edges, so the histogram is exact
+    public synchronized long[] histogram(){
+        long[] histogram = new long[MAX_SCORE - MIN_SCORE + 1];
+        for (int i = 0; i < BINS; i++) {
+            int bucket = (i + BINS_PER_POINT / 2) / BINS_PER_POINT;
+            histogram[bucket] += bins[i];
+        }
+        return histogram;
+    }
+
+    private static int bin(double score){
+        if(!(score > MIN_SCORE)){
+            return 0;
+        }
+        return Math.min(BINS - 1, (int) ((score - MIN_SCORE) * BINS_PER_POINT));
+    }
+}
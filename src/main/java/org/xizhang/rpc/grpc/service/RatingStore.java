@@ -1,5 +1,14 @@
 package org.xizhang.rpc.grpc.service;
 
+import java.util.function.BiConsumer;
+
 public interface RatingStore {
     Rating add(String laptopID, double score);
+
+    // adds several ratings of one laptop in one update
+    Rating add(String laptopID, double[] scores);
+
+    Rating find(String laptopID);
+
+    void forEach(BiConsumer<String, Rating> action);
 }
@@ -0,0 +1,88 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.xizhang.rpc.grpc.pcbook.pb.SearchLaptopResponse;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// marshals a SearchLaptopResponse from the already serialized bytes of its laptop:
+// only the field header is encoded per message, the laptop bytes are written as they are
+public class SerializedLaptopMarshaller implements MethodDescriptor.Marshaller<ByteString> {
+    private static final int LAPTOP_TAG = (SearchLaptopResponse.LAPTOP_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    @Override
+    public InputStream stream(ByteString laptop) {
+        byte[] header = new byte[CodedOutputStream.computeUInt32SizeNoTag(LAPTOP_TAG)
+                + CodedOutputStream.computeUInt32SizeNoTag(laptop.size())];
+        CodedOutputStream output = CodedOutputStream.newInstance(header);
+        try {
+            output.writeUInt32NoTag(LAPTOP_TAG);
+            output.writeUInt32NoTag(laptop.size());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        // concat builds a rope, the laptop bytes are not copied
+        return new SerializedInputStream(ByteString.copyFrom(header).concat(laptop));
+    }
+
+    @Override
+    public ByteString parse(InputStream stream) {
+        try {
+            return SearchLaptopResponse.parseFrom(stream).getLaptop().toByteString();
+        } catch (IOException e) {
+            throw Status.INTERNAL.withDescription("invalid search laptop response").withCause(e).asRuntimeException();
+        }
+    }
+
+    // gRPC drains Drainable streams straight into the outbound buffer
+    private static class SerializedInputStream extends InputStream implements Drainable, KnownLength {
+        private ByteString data;
+        private InputStream input;
+
+        SerializedInputStream(ByteString data){
+            this.data = data;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            if(input != null){
+                return (int) input.transferTo(target);
+            }
+            int size = data.size();
+            data.writeTo(target);
+            data = ByteString.EMPTY;
+            return size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return input().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return input().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return input == null ? data.size() : input.available();
+        }
+
+        private InputStream input(){
+            if(input == null){
+                input = data.newInput();
+            }
+            return input;
+        }
+    }
+}
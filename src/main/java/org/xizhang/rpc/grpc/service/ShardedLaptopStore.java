@@ -0,0 +1,196 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import io.grpc.Context;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// hash partitions laptops by ID over independent InMemoryLaptopStore shards, each with its
+// own map, columns and indexes, so concurrent saves of different laptops do not meet on
+// one structure. searches run on every shard in parallel on a pool of their own and merge
+// the hits
+public class ShardedLaptopStore implements LaptopStore, Closeable {
+    // paging positions are shard << ROW_BITS | row, so pages go through the shards in order
+    private static final int ROW_BITS = 40;
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+
+    private final InMemoryLaptopStore[] shards;
+    private final ForkJoinPool pool;
+    // set when the store created pool itself and has to shut it down
+    private final boolean ownsPool;
+
+    // the store creates a pool of its own, which close shuts down
+    public ShardedLaptopStore(int shards){
+        this(new ForkJoinPool(Math.max(1, Math.min(shards, Runtime.getRuntime().availableProcessors()))), shards, true);
+    }
+
+    // pool runs the per shard searches, which never block on the caller's stream.
+    // it stays the caller's to shut down
+    public ShardedLaptopStore(ForkJoinPool pool, int shards){
+        this(pool, shards, false);
+    }
+
+    private ShardedLaptopStore(ForkJoinPool pool, int shards, boolean ownsPool){
+        if(shards < 1 || shards > 1 << (63 - ROW_BITS)){
+            throw new IllegalArgumentException("invalid shard count " + shards);
+        }
+        this.shards = new InMemoryLaptopStore[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new InMemoryLaptopStore();
+        }
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    @Override
+    public void save(Laptop laptop) {
+        shard(laptop.getId()).save(laptop);
+    }
+
+    // splits the batch by shard, each shard saves its part in one bulk insert
+    @Override
+    public BitSet saveAll(List<Laptop> laptops) {
+        List<List<Integer>> positions = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < laptops.size(); i++) {
+            positions.get(shardIndex(laptops.get(i).getId())).add(i);
+        }
+        BitSet existing = new BitSet();
+        for (int shard = 0; shard < shards.length; shard++) {
+            List<Integer> shardPositions = positions.get(shard);
+            if(shardPositions.isEmpty()){
+                continue;
+            }
+            List<Laptop> batch = new ArrayList<>(shardPositions.size());
+            for(int position : shardPositions){
+                batch.add(laptops.get(position));
+            }
+            BitSet shardExisting = shards[shard].saveAll(batch);
+            for (int i = shardExisting.nextSetBit(0); i >= 0; i = shardExisting.nextSetBit(i + 1)) {
+                existing.set(shardPositions.get(i));
+            }
+        }
+        return existing;
+    }
+
+    @Override
+    public Laptop find(String id) {
+        return shard(id).find(id);
+    }
+
+    @Override
+    public void search(Context ctx, Filter filter, LaptopStream stream) {
+        if(shards.length == 1){
+            shards[0].search(ctx, filter, stream);
+            return;
+        }
+
+        // shards only collect their hits, the caller's thread sends them shard by shard as
+        // they complete, so a slow stream never parks a pool worker
+        List<ForkJoinTask<LaptopHits>> tasks = new ArrayList<>(shards.length);
+        for(InMemoryLaptopStore shard : shards){
+            tasks.add(pool.submit(() -> {
+                LaptopHits hits = new LaptopHits();
+                shard.search(ctx, filter, hits);
+                return hits;
+            }));
+        }
+
+        // wait for every shard before returning, even if one of them failed
+        RuntimeException failure = null;
+        boolean completed = true;
+        for(ForkJoinTask<LaptopHits> task : tasks){
+            try{
+                LaptopHits hits = task.join();
+                if(failure == null && completed){
+                    completed = hits.replay(ctx, stream);
+                }
+            }catch (RuntimeException e){
+                if(failure == null){
+                    failure = e;
+                }
+            }
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
+
+    @Override
+    public long search(Context ctx, Filter filter, long after, int limit, LaptopStream stream) {
+        int shard = after < 0 ? 0 : (int) (after >>> ROW_BITS);
+        long position = after < 0 ? -1 : after & ROW_MASK;
+        CountingStream counting = new CountingStream(stream);
+        for (; shard < shards.length; shard++, position = -1) {
+            long next = shards[shard].search(ctx, filter, position, limit - counting.sent, counting);
+            if(ctx.isCancelled()){
+                return -1;
+            }
+            if(next >= 0){
+                return (long) shard << ROW_BITS | next;
+            }
+            if(counting.sent == limit){
+                // the page ends with this shard, only hand out a position if a later shard has more
+                return hasMatches(ctx, filter, shard + 1) ? (long) shard << ROW_BITS | ROW_MASK : -1;
+            }
+        }
+        return -1;
+    }
+
+    // shuts down the pool the store created, later searches fail. a pool passed in is left running
+    @Override
+    public void close(){
+        if(ownsPool){
+            pool.shutdown();
+        }
+    }
+
+    private boolean hasMatches(Context ctx, Filter filter, int from){
+        CountingStream counting = new CountingStream(laptop -> {});
+        for (int shard = from; shard < shards.length && counting.sent == 0; shard++) {
+            shards[shard].search(ctx, filter, -1, 1, counting);
+        }
+        return counting.sent > 0;
+    }
+
+    private InMemoryLaptopStore shard(String id){
+        return shards[shardIndex(id)];
+    }
+
+    private int shardIndex(String id){
+        int h = id.hashCode();
+        // spreads the hash so that IDs differing only in their last characters spread too
+        h ^= h >>> 16;
+        return Math.floorMod(h * 0x9E3779B9, shards.length);
+    }
+
+    private static class CountingStream implements LaptopStream {
+        private final LaptopStream stream;
+        private int sent;
+
+        CountingStream(LaptopStream stream){
+            this.stream = stream;
+        }
+
+        @Override
+        public void send(Laptop laptop) {
+            sent++;
+            stream.send(laptop);
+        }
+
+        @Override
+        public void send(Laptop laptop, ByteString serialized) {
+            sent++;
+            stream.send(laptop, serialized);
+        }
+    }
+}
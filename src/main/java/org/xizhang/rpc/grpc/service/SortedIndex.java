@@ -0,0 +1,132 @@
+package org.xizhang.rpc.grpc.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// sorted secondary index: key -> set of values, safe for concurrent add and range reads
+public class SortedIndex<K extends Comparable<K>, V> {
+    private final ConcurrentSkipListMap<K, Bucket<V>> entries;
+
+    public SortedIndex(){
+        entries = new ConcurrentSkipListMap<>();
+    }
+
+    public void add(K key, V value){
+        while(true){
+            Bucket<V> bucket = entries.computeIfAbsent(key, k -> new Bucket<>());
+            synchronized (bucket){
+                if(!bucket.dropped){
+                    bucket.values.add(value);
+                    return;
+                }
+            }
+            // a remove emptied the bucket and is about to unlink it, finish that and retry
+            entries.remove(key, bucket);
+        }
+    }
+
+    // adds several values under one key with one lookup
+    public void addAll(K key, Collection<V> values){
+        while(true){
+            Bucket<V> bucket = entries.computeIfAbsent(key, k -> new Bucket<>());
+            synchronized (bucket){
+                if(!bucket.dropped){
+                    bucket.values.addAll(values);
+                    return;
+                }
+            }
+            entries.remove(key, bucket);
+        }
+    }
+
+    // keys without values are dropped, so the index does not keep every key it ever held.
+    // a bucket is emptied and marked dropped under its lock, so no add can slip into a
+    // bucket that is on its way out of the map
+    public void remove(K key, V value){
+        Bucket<V> bucket = entries.get(key);
+        if(bucket == null){
+            return;
+        }
+        synchronized (bucket){
+            if(!bucket.values.remove(value) || !bucket.values.isEmpty()){
+                return;
+            }
+            bucket.dropped = true;
+        }
+        entries.remove(key, bucket);
+    }
+
+    // all values whose key <= bound
+    public Iterable<V> atMost(K bound){
+        return () -> new FlatIterator<>(entries.headMap(bound, true).values().iterator());
+    }
+
+    // all values whose key >= bound
+    public Iterable<V> atLeast(K bound){
+        return () -> new FlatIterator<>(entries.tailMap(bound, true).values().iterator());
+    }
+
+    // walks all ranges in lockstep and returns the first one to run out, i.e. the smallest range.
+    // the cost is (number of ranges) * (size of the smallest range), no statistics needed.
+    // returns null once every range holds more than limit values
+    public static <V> Iterable<V> smallest(List<Iterable<V>> ranges, int limit){
+        int n = ranges.size();
+        if(n == 0){
+            return Collections.emptyList();
+        }
+        Iterator<?>[] iterators = new Iterator<?>[n];
+        for (int i = 0; i < n; i++) {
+            iterators[i] = ranges.get(i).iterator();
+        }
+        for (int seen = 0; seen <= limit; seen++) {
+            for (int i = 0; i < n; i++) {
+                if(!iterators[i].hasNext()){
+                    return ranges.get(i);
+                }
+                iterators[i].next();
+            }
+        }
+        return null;
+    }
+
+    // values of one key. readers iterate values without the lock, add and remove take it
+    private static class Bucket<V> {
+        final Set<V> values = ConcurrentHashMap.newKeySet();
+        boolean dropped;
+    }
+
+    private static class FlatIterator<V> implements Iterator<V> {
+        private final Iterator<Bucket<V>> outer;
+        private Iterator<V> inner;
+
+        FlatIterator(Iterator<Bucket<V>> outer){
+            this.outer = outer;
+            this.inner = Collections.emptyIterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(!inner.hasNext()){
+                if(!outer.hasNext()){
+                    return false;
+                }
+                inner = outer.next().values.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public V next() {
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            return inner.next();
+        }
+    }
+}
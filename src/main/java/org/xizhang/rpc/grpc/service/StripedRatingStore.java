@@ -0,0 +1,151 @@
+package org.xizhang.rpc.grpc.service;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+// rating store whose per laptop state is updated in place. like LongAdder, a laptop starts
+// with one counter cell and spreads its writers over more cells (up to about one per
+// processor) once they collide, so a hot laptop rated from many streams is not a single
+// contended slot. an add allocates nothing but the rating it returns
+public class StripedRatingStore implements RatingStore {
+    private static final int MAX_STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+    private final ConcurrentMap<String, RatingCell> data;
+
+    public StripedRatingStore(){
+        data = new ConcurrentHashMap<>(0);
+    }
+
+    @Override
+    public Rating add(String laptopID, double score) {
+        return add(laptopID, 1, score);
+    }
+
+    @Override
+    public Rating add(String laptopID, double[] scores) {
+        double sum = 0;
+        for(double score : scores){
+            sum += score;
+        }
+        return add(laptopID, scores.length, sum);
+    }
+
+    private Rating add(String laptopID, int count, double sum) {
+        RatingCell cell = data.get(laptopID);
+        if(cell == null){
+            cell = data.computeIfAbsent(laptopID, id -> new RatingCell());
+        }
+        cell.add(count, sum);
+        return cell.read();
+    }
+
+    @Override
+    public Rating find(String laptopID) {
+        RatingCell cell = data.get(laptopID);
+        return cell == null ? null : cell.read();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Rating> action) {
+        data.forEach((laptopID, cell) -> action.accept(laptopID, cell.read()));
+    }
+
+    private static class RatingCell {
+        private volatile Stripe[] stripes = { new Stripe() };
+
+        void add(int count, double sum){
+            Stripe[] current = stripes;
+            int index = probe() & (current.length - 1);
+            while(!current[index].tryAdd(count, sum)){
+                // another writer holds this stripe: add stripes, or move on when there are enough
+                Stripe[] grown = grow(current);
+                if(grown == current){
+                    Thread.onSpinWait();
+                }
+                current = grown;
+                index = (index + 1) & (current.length - 1);
+            }
+        }
+
+        // every stripe is read consistently, so the total never counts half of a rating.
+        // the stripes are not read at one instant, ratings added meanwhile may or may not be in
+        Rating read(){
+            long count = 0;
+            double sum = 0;
+            for(Stripe stripe : stripes){
+                while(true){
+                    long version = (long) Stripe.VERSION.getAcquire(stripe);
+                    if((version & 1) != 0){
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    long stripeCount = stripe.count;
+                    double stripeSum = stripe.sum;
+                    VarHandle.acquireFence();
+                    if((long) Stripe.VERSION.getAcquire(stripe) == version){
+                        count += stripeCount;
+                        sum += stripeSum;
+                        break;
+                    }
+                }
+            }
+            return new Rating((int) count, sum);
+        }
+
+        private synchronized Stripe[] grow(Stripe[] current){
+            if(stripes == current && current.length < MAX_STRIPES){
+                Stripe[] grown = new Stripe[current.length << 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = new Stripe();
+                }
+                stripes = grown;
+            }
+            return stripes;
+        }
+
+        private static int probe(){
+            // spreads the thread ID over the stripe indexes
+            long id = Thread.currentThread().getId();
+            int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // count and sum guarded by a seqlock: the version is odd while a writer is inside,
+    // a reader retries until it saw the same even version before and after reading.
+    // padded so that neighbouring stripes do not share a cache line
+    private static class Stripe {
+        private static final VarHandle VERSION;
+
+        static {
+            try{
+                VERSION = MethodHandles.lookup().findVarHandle(Stripe.class, "version", long.class);
+            }catch (ReflectiveOperationException e){
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        @SuppressWarnings("unused")
+        private long p0, p1, p2, p3, p4, p5, p6;
+        private volatile long version;
+        private long count;
+        private double sum;
+        @SuppressWarnings("unused")
+        private long q0, q1, q2, q3, q4, q5;
+
+        boolean tryAdd(int count, double sum){
+            long current = version;
+            if((current & 1) != 0 || !VERSION.compareAndSet(this, current, current + 1)){
+                return false;
+            }
+            this.count += count;
+            this.sum += sum;
+            VERSION.setRelease(this, current + 2);
+            return true;
+        }
+    }
+}
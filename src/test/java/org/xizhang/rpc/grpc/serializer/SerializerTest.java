@@ -16,4 +16,12 @@ class SerializerTest {
         Laptop laptop2 = serializer.readBinaryFile(binaryFile);
         Assert.assertEquals(laptop1, laptop2);
     }
-}
\ No newline at end of file
+
+    @Test
+    void toAndFromJSON() throws Exception {
+        Laptop laptop1 = new Generator().NewLaptop();
+        Serializer serializer = new Serializer();
+        Laptop laptop2 = serializer.fromJSON(serializer.toJSON(laptop1));
+        Assert.assertEquals(laptop1, laptop2);
+    }
+}
@@ -0,0 +1,85 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogTest {
+
+    @Test
+    public void writesEvents() throws IOException {
+        StringWriter out = new StringWriter();
+        AccessLog accessLog = new AccessLog(out, 16);
+        accessLog.log(AccessLog.Event.SEARCH_HIT, "laptop-1", 0);
+        accessLog.log(AccessLog.Event.IMAGE_CHUNK, "laptop-2", 1024);
+        accessLog.log(AccessLog.Event.RATE, "laptop-3", 7.5);
+        accessLog.close();
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith(" SEARCH_HIT laptop-1 0"));
+        assertTrue(lines[1].endsWith(" IMAGE_CHUNK laptop-2 1024"));
+        assertTrue(lines[2].endsWith(" RATE laptop-3 7.5"));
+        assertEquals(0, accessLog.getDropped());
+    }
+
+    @Test
+    public void samplesEvents() throws IOException {
+        StringWriter out = new StringWriter();
+        AccessLog accessLog = new AccessLog(out, 1 << 12).sample(AccessLog.Event.SEARCH_HIT, 1000);
+        for (int i = 0; i < 1000; i++) {
+            accessLog.log(AccessLog.Event.SEARCH_HIT, "laptop-" + i, 0);
+        }
+        accessLog.log(AccessLog.Event.CREATE, "laptop-1", 0);
+        accessLog.close();
+
+        String log = out.toString();
+        // about one search hit in a thousand is kept, creates are not sampled
+        assertTrue(log.split("\n").length < 10);
+        assertTrue(log.contains(" CREATE laptop-1 0"));
+    }
+
+    @Test
+    public void dropsEventsWhenFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StringWriter lines = new StringWriter();
+        Writer out = new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                blocked.countDown();
+                try{
+                    release.await();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                lines.write(buffer, offset, length);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        AccessLog accessLog = new AccessLog(out, 4);
+        accessLog.log(AccessLog.Event.RATE, "laptop-0", 1);
+        // the writer is stuck on the first line, the other 4 slots fill up
+        blocked.await();
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i <= 4, accessLog.log(AccessLog.Event.RATE, "laptop-" + i, 1));
+        }
+        assertEquals(6, accessLog.getDropped());
+        release.countDown();
+        accessLog.close();
+
+        assertEquals(5, lines.toString().split("\n").length);
+    }
+}
@@ -0,0 +1,155 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import com.xizhang.rpc.grpc.pcbook.pb.Memory;
+import io.grpc.Context;
+import org.junit.jupiter.api.Test;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingLaptopStoreTest {
+
+    @Test
+    void cachedResultsFollowSaves() {
+        InMemoryLaptopStore inner = new InMemoryLaptopStore();
+        CachingLaptopStore laptopStore = new CachingLaptopStore(inner, 1 << 20);
+        Generator generator = new Generator();
+        for (int i = 0; i < 500; i++) {
+            laptopStore.save(generator.NewLaptop());
+        }
+        Filter filter = newFilter(3000, 4, 2.5, 8);
+
+        assertEquals(search(inner, filter), search(laptopStore, filter));
+        assertEquals(0, laptopStore.getHits());
+        assertEquals(1, laptopStore.getMisses());
+        assertEquals(1, laptopStore.getEntries());
+
+        // new laptops that match are appended to the cached result
+        List<Laptop> batch = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            batch.add(generator.NewLaptop());
+        }
+        laptopStore.saveAll(batch.subList(0, 250));
+        for(Laptop laptop : batch.subList(250, 500)){
+            laptopStore.save(laptop);
+        }
+        // an equal filter built separately shares the entry
+        assertEquals(search(inner, filter), search(laptopStore, newFilter(3000, 4, 2.5, 8)));
+        assertEquals(1, laptopStore.getHits());
+        assertEquals(0.5, laptopStore.getHitRatio());
+        assertEquals(1, laptopStore.getEntries());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        CachingLaptopStore laptopStore = new CachingLaptopStore(new InMemoryLaptopStore(), 4096);
+        Generator generator = new Generator();
+        for (int i = 0; i < 100; i++) {
+            laptopStore.save(generator.NewLaptop());
+        }
+        // every laptop matches the empty filter, 100 hits take 1600 bytes
+        Filter all = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+        Filter allCheap = all.toBuilder().setMaxPriceUsd(1e9).build();
+        Filter allCheaper = all.toBuilder().setMaxPriceUsd(1e8).build();
+
+        search(laptopStore, all);
+        search(laptopStore, allCheap);
+        assertEquals(2, laptopStore.getEntries());
+        assertTrue(laptopStore.getBytes() <= 4096);
+
+        // all was used last, allCheap is evicted to make room
+        search(laptopStore, all);
+        search(laptopStore, allCheaper);
+        assertEquals(2, laptopStore.getEntries());
+        assertTrue(laptopStore.getBytes() <= 4096);
+        long misses = laptopStore.getMisses();
+        search(laptopStore, all);
+        search(laptopStore, allCheaper);
+        assertEquals(misses, laptopStore.getMisses());
+        search(laptopStore, allCheap);
+        assertEquals(misses + 1, laptopStore.getMisses());
+    }
+
+    @Test
+    void savesDuringSearchAreMerged() {
+        Generator generator = new Generator();
+        Laptop before = generator.NewLaptop();
+        Laptop after = generator.NewLaptop();
+        CachingLaptopStore[] cache = new CachingLaptopStore[1];
+        boolean[] first = {true};
+        InMemoryLaptopStore inner = new InMemoryLaptopStore(){
+            @Override
+            public void search(Context ctx, Filter filter, LaptopStream stream) {
+                if(!first[0]){
+                    super.search(ctx, filter, stream);
+                    return;
+                }
+                // one save is seen by the search, the other one lands after it
+                first[0] = false;
+                cache[0].save(before);
+                super.search(ctx, filter, stream);
+                cache[0].save(after);
+            }
+        };
+        cache[0] = new CachingLaptopStore(inner, 1 << 20);
+        for (int i = 0; i < 100; i++) {
+            cache[0].save(generator.NewLaptop());
+        }
+        Filter all = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+
+        Set<String> found = search(cache[0], all);
+        assertTrue(found.contains(before.getId()));
+        assertFalse(found.contains(after.getId()));
+        assertEquals(1, cache[0].getEntries());
+
+        // the cached result holds both saves once, search asserts there are no duplicates
+        long bytes = cache[0].getBytes();
+        assertEquals(search(inner, all), search(cache[0], all));
+        assertEquals(1, cache[0].getHits());
+
+        // a saved laptop's serialized copy is counted in the cache's size
+        Laptop laptop = generator.NewLaptop();
+        cache[0].save(laptop);
+        assertTrue(cache[0].getBytes() >= bytes + laptop.getSerializedSize());
+    }
+
+    @Test
+    void boundsEntryCount() {
+        CachingLaptopStore laptopStore = new CachingLaptopStore(new InMemoryLaptopStore(), 1 << 20, 2);
+        Generator generator = new Generator();
+        for (int i = 0; i < 100; i++) {
+            laptopStore.save(generator.NewLaptop());
+        }
+        for (int i = 1; i <= 5; i++) {
+            search(laptopStore, Filter.newBuilder().setMaxPriceUsd(1000 * i).build());
+        }
+        assertEquals(2, laptopStore.getEntries());
+        assertEquals(5, laptopStore.getMisses());
+    }
+
+    private static Set<String> search(LaptopStore laptopStore, Filter filter){
+        Set<String> found = new HashSet<>();
+        laptopStore.search(Context.current(), filter, laptop -> assertTrue(found.add(laptop.getId())));
+        return found;
+    }
+
+    private static Filter newFilter(double maxPrice, int minCores, double minGhz, long minRamGB) {
+        Memory minRam = Memory.newBuilder()
+                .setValue(minRamGB)
+                .setUnit(Memory.Unit.GIGABYTE)
+                .build();
+        return Filter.newBuilder()
+                .setMaxPriceUsd(maxPrice)
+                .setMinCpuCores(minCores)
+                .setMinCpuGhz(minGhz)
+                .setMinRam(minRam)
+                .build();
+    }
+}
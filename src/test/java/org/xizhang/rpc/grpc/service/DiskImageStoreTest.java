@@ -0,0 +1,84 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DiskImageStoreTest {
+    @TempDir
+    Path imageFolder;
+
+    @Test
+    void commitWritesTheWholeImage() throws IOException {
+        DiskImageStore imageStore = new DiskImageStore(imageFolder.toString());
+        ImageWriter writer = imageStore.create(UUID.randomUUID().toString(), ".jpg");
+        writer.write(ByteString.copyFromUtf8("first chunk,"));
+        writer.write(ByteString.copyFromUtf8("second chunk"));
+        assertEquals(24, writer.size());
+
+        String imageID = writer.commit();
+        Path image = imageFolder.resolve(imageID + ".jpg");
+        assertEquals("first chunk,second chunk", Files.readString(image));
+        assertEquals(1, countFiles());
+    }
+
+    @Test
+    void abortRemovesThePartialImage() throws IOException {
+        DiskImageStore imageStore = new DiskImageStore(imageFolder.toString());
+        ImageWriter writer = imageStore.create(UUID.randomUUID().toString(), ".jpg");
+        writer.write(ByteString.copyFromUtf8("partial"));
+        writer.abort();
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    void createWithAnInvalidImageType() {
+        DiskImageStore imageStore = new DiskImageStore(imageFolder.toString());
+        assertThrows(IllegalArgumentException.class,
+                () -> imageStore.create(UUID.randomUUID().toString(), "/../../etc/passwd"));
+    }
+
+    @Test
+    void contentAddressedStoresIdenticalImagesOnce() throws IOException {
+        DiskImageStore imageStore = new DiskImageStore(imageFolder.toString(), true);
+        String first = upload(imageStore, "same photo");
+        String second = upload(imageStore, "same photo");
+        String other = upload(imageStore, "other photo");
+        assertNotEquals(first, second);
+        assertEquals(2, countBlobs());
+
+        assertTrue(imageStore.delete(first));
+        assertEquals(2, countBlobs());
+        assertTrue(imageStore.delete(second));
+        assertEquals(1, countBlobs());
+        assertFalse(imageStore.delete(second));
+        assertTrue(imageStore.delete(other));
+        assertEquals(0, countBlobs());
+    }
+
+    private String upload(ImageStore imageStore, String content) throws IOException {
+        ImageWriter writer = imageStore.create(UUID.randomUUID().toString(), ".jpg");
+        writer.write(ByteString.copyFromUtf8(content));
+        return writer.commit();
+    }
+
+    private long countBlobs() throws IOException {
+        try(Stream<Path> files = Files.walk(imageFolder.resolve("blobs"))){
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private long countFiles() throws IOException {
+        try(Stream<Path> files = Files.list(imageFolder)){
+            return files.count();
+        }
+    }
+}
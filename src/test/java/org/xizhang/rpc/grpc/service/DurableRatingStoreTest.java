@@ -0,0 +1,72 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DurableRatingStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoverAfterRestart() throws Exception {
+        String laptopID1 = UUID.randomUUID().toString();
+        String laptopID2 = UUID.randomUUID().toString();
+        // snapshots are taken while ratings keep coming in
+        DurableRatingStore ratingStore = new DurableRatingStore(directory, 1, 50);
+        List<Callable<Rating>> tasks = new LinkedList<>();
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            tasks.add(() -> ratingStore.add(laptopID1, 5));
+            tasks.add(() -> ratingStore.add(laptopID2, 3));
+        }
+        Executors.newFixedThreadPool(8).invokeAll(tasks);
+        ratingStore.close();
+
+        DurableRatingStore recovered = new DurableRatingStore(directory);
+        assertEquals(n, recovered.find(laptopID1).getCount());
+        assertEquals(n * 5, recovered.find(laptopID1).getSum(), 1e-9);
+        assertEquals(n, recovered.find(laptopID2).getCount());
+        assertEquals(n * 3, recovered.find(laptopID2).getSum(), 1e-9);
+        recovered.close();
+    }
+
+    @Test
+    void skipTornRecord() throws IOException {
+        String laptopID = UUID.randomUUID().toString();
+        DurableRatingStore ratingStore = new DurableRatingStore(directory);
+        ratingStore.add(laptopID, 4);
+        ratingStore.add(laptopID, 6);
+        ratingStore.close();
+
+        // simulate a crash in the middle of writing the second rating
+        Path log;
+        try(Stream<Path> files = Files.list(directory)){
+            log = files.filter(path -> path.getFileName().toString().startsWith("wal-")).sorted()
+                    .reduce((a, b) -> b).orElseThrow();
+        }
+        try(FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)){
+            channel.truncate(channel.size() - 5);
+        }
+
+        DurableRatingStore recovered = new DurableRatingStore(directory);
+        assertEquals(1, recovered.find(laptopID).getCount());
+        assertEquals(4, recovered.find(laptopID).getSum(), 1e-9);
+        Rating rating = recovered.add(laptopID, 6);
+        assertEquals(2, rating.getCount());
+        recovered.close();
+    }
+}
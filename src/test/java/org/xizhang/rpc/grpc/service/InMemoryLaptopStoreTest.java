@@ -0,0 +1,212 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import com.xizhang.rpc.grpc.pcbook.pb.Memory;
+import io.grpc.Context;
+import org.junit.jupiter.api.Test;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryLaptopStoreTest {
+
+    @Test
+    void searchMatchesFullScan() {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+        List<Laptop> laptops = new LinkedList<>();
+        for (int i = 0; i < 500; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptops.add(laptop);
+            laptopStore.save(laptop);
+        }
+
+        Filter[] filters = new Filter[]{
+                newFilter(3000, 2, 2.0, 4),
+                newFilter(1600, 4, 2.5, 8),
+                newFilter(2000, 8, 3.0, 32),
+                newFilter(1500, 2, 2.0, 4),
+                newFilter(3000, 7, 3.4, 64),
+                Filter.getDefaultInstance()
+        };
+        for(Filter filter : filters){
+            Set<String> expected = new HashSet<>();
+            for(Laptop laptop : laptops){
+                if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                    expected.add(laptop.getId());
+                }
+            }
+            Set<String> found = new HashSet<>();
+            laptopStore.search(Context.current(), filter, laptop -> assertTrue(found.add(laptop.getId())));
+            assertEquals(expected, found);
+        }
+    }
+
+    @Test
+    void parallelSearchMatchesFullScan() {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore(ForkJoinPool.commonPool(), 4);
+        Generator generator = new Generator();
+        Filter filter = newFilter(3000, 2, 2.0, 4);
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 40000; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopStore.save(laptop);
+            if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                expected.add(laptop.getId());
+            }
+        }
+
+        // partitions are scanned on the pool, their hits are sent on the caller's thread
+        Thread caller = Thread.currentThread();
+        Set<String> found = new HashSet<>();
+        laptopStore.search(Context.current(), filter, laptop -> {
+            assertSame(caller, Thread.currentThread());
+            assertTrue(found.add(laptop.getId()));
+        });
+        assertEquals(expected, found);
+    }
+
+    @Test
+    void saveAll() {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+        List<Laptop> laptops = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            laptops.add(generator.NewLaptop());
+        }
+        laptopStore.save(laptops.get(3));
+        // a laptop already stored and one repeated within the batch are skipped
+        List<Laptop> batch = new ArrayList<>(laptops);
+        batch.add(laptops.get(7));
+        BitSet existing = laptopStore.saveAll(batch);
+        assertTrue(existing.get(3));
+        assertTrue(existing.get(1000));
+        assertEquals(2, existing.cardinality());
+
+        for(Filter filter : new Filter[]{newFilter(3000, 2, 2.0, 4), newFilter(1500, 8, 3.0, 32), Filter.getDefaultInstance()}){
+            Set<String> expected = new HashSet<>();
+            for(Laptop laptop : laptops){
+                assertEquals(laptop, laptopStore.find(laptop.getId()));
+                if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                    expected.add(laptop.getId());
+                }
+            }
+            Set<String> found = new HashSet<>();
+            laptopStore.search(Context.current(), filter, laptop -> assertTrue(found.add(laptop.getId())));
+            assertEquals(expected, found);
+        }
+    }
+
+    @Test
+    void pagedSearchFollowsRowOrder() {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+        List<Laptop> laptops = new ArrayList<>();
+        Filter[] filters = new Filter[]{newFilter(1500, 8, 3.0, 32), newFilter(3000, 7, 3.4, 64), Filter.getDefaultInstance()};
+        // the second round pages over rows saved after the first one cached its hits
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 2000; i++) {
+                Laptop laptop = generator.NewLaptop();
+                laptops.add(laptop);
+                laptopStore.save(laptop);
+            }
+            for(Filter filter : filters){
+                List<String> expected = new ArrayList<>();
+                for(Laptop laptop : laptops){
+                    if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                        expected.add(laptop.getId());
+                    }
+                }
+                List<String> found = new ArrayList<>();
+                long after = -1;
+                do{
+                    after = laptopStore.search(Context.current(), filter, after, 7, laptop -> found.add(laptop.getId()));
+                }while(after >= 0);
+                assertEquals(expected, found);
+            }
+        }
+    }
+
+    @Test
+    void pagedSearchWhileSaving() throws Exception {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        // few laptops cost at most 1520, the price index plans the search
+        Filter filter = newFilter(1520, 2, 2.0, 4);
+        List<Laptop> laptops = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> savers = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            savers.add(executor.submit(() -> {
+                Generator generator = new Generator();
+                for (int i = 0; i < 5000; i++) {
+                    Laptop laptop = generator.NewLaptop();
+                    laptopStore.save(laptop);
+                    laptops.add(laptop);
+                }
+            }));
+        }
+        // pages cache the sorted hits while rows are appended and indexed
+        Future<?> pager = executor.submit(() -> {
+            while(!savers.stream().allMatch(Future::isDone)){
+                long after = -1;
+                do{
+                    after = laptopStore.search(Context.current(), filter, after, 5, laptop -> {});
+                }while(after >= 0);
+            }
+        });
+        for(Future<?> saver : savers){
+            saver.get();
+        }
+        pager.get();
+        executor.shutdown();
+
+        Set<String> expected = new HashSet<>();
+        for(Laptop laptop : laptops){
+            if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                expected.add(laptop.getId());
+            }
+        }
+        List<String> found = new ArrayList<>();
+        long after = -1;
+        do{
+            after = laptopStore.search(Context.current(), filter, after, 5, laptop -> found.add(laptop.getId()));
+        }while(after >= 0);
+        assertEquals(expected.size(), found.size());
+        assertEquals(expected, new HashSet<>(found));
+    }
+
+    @Test
+    void saveWithAnAlreadyExistsID() {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Laptop laptop = new Generator().NewLaptop();
+        laptopStore.save(laptop);
+        assertThrows(AlreadyExistsException.class, () -> laptopStore.save(laptop));
+        assertEquals(laptop, laptopStore.find(laptop.getId()));
+    }
+
+    private Filter newFilter(double maxPrice, int minCores, double minGhz, long minRamGB) {
+        Memory minRam = Memory.newBuilder()
+                .setValue(minRamGB)
+                .setUnit(Memory.Unit.GIGABYTE)
+                .build();
+        return Filter.newBuilder()
+                .setMaxPriceUsd(maxPrice)
+                .setMinCpuCores(minCores)
+                .setMinCpuGhz(minGhz)
+                .setMinRam(minRam)
+                .build();
+    }
+}
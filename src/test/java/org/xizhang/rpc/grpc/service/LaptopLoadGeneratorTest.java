@@ -0,0 +1,74 @@
+package org.xizhang.rpc.grpc.service;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LaptopLoadGeneratorTest {
+    private LaptopServer server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        String serverName = InProcessServerBuilder.generateName();
+        server = new LaptopServer(InProcessServerBuilder.forName(serverName), 0,
+                new InMemoryLaptopStore(), new DiskImageStore("img", true), new InMemoryRatingStore());
+        server.start();
+        channel = InProcessChannelBuilder.forName(serverName).build();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void openLoop() throws InterruptedException {
+        LaptopLoadGenerator loadGenerator = new LaptopLoadGenerator(channel, new int[]{1, 1, 1, 1}, 100);
+        loadGenerator.prepare(10, 4096);
+        LaptopLoadGenerator.Report report = loadGenerator.runOpenLoop(200, Duration.ZERO, Duration.ofSeconds(1));
+
+        long calls = 0;
+        for(LaptopLoadGenerator.Operation operation : LaptopLoadGenerator.Operation.values()){
+            calls += report.getHistogram(operation).getTotalCount();
+            assertEquals(0, report.getErrors(operation));
+        }
+        // the schedule starts 200 calls in one second
+        assertEquals(200, calls);
+    }
+
+    @Test
+    public void warmupIsNotMeasured() throws InterruptedException {
+        LaptopLoadGenerator loadGenerator = new LaptopLoadGenerator(channel, new int[]{1, 1, 1, 1}, 100);
+        loadGenerator.prepare(10, 4096);
+        LaptopLoadGenerator.Report report = loadGenerator.runOpenLoop(200, Duration.ofMillis(500), Duration.ofSeconds(1));
+
+        long calls = 0;
+        for(LaptopLoadGenerator.Operation operation : LaptopLoadGenerator.Operation.values()){
+            calls += report.getHistogram(operation).getTotalCount();
+        }
+        // the 100 warmup calls run but are not counted, even those still running after it
+        assertEquals(200, calls);
+    }
+
+    @Test
+    public void closedLoop() throws InterruptedException {
+        LaptopLoadGenerator loadGenerator = new LaptopLoadGenerator(channel, new int[]{0, 1, 0, 1}, 100);
+        loadGenerator.prepare(10, 4096);
+        LaptopLoadGenerator.Report report = loadGenerator.runClosedLoop(4, 0, Duration.ofMillis(100), Duration.ofMillis(500));
+
+        assertTrue(report.getHistogram(LaptopLoadGenerator.Operation.SEARCH).getTotalCount() > 0);
+        assertTrue(report.getHistogram(LaptopLoadGenerator.Operation.RATE).getTotalCount() > 0);
+        assertEquals(0, report.getHistogram(LaptopLoadGenerator.Operation.CREATE).getTotalCount());
+        assertEquals(0, report.getHistogram(LaptopLoadGenerator.Operation.UPLOAD).getTotalCount());
+    }
+}
@@ -1,10 +1,14 @@
 package org.xizhang.rpc.grpc.service;
 
+import com.google.protobuf.ByteString;
 import com.xizhang.rpc.grpc.pcbook.pb.*;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.grpc.testing.GrpcCleanupRule;
 import org.junit.After;
@@ -15,8 +19,16 @@ import org.junit.jupiter.api.Test;
 import org.xizhang.rpc.grpc.sample.Generator;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -25,7 +37,8 @@ class LaptopServerTest {
     private LaptopServer server;
     private ManagedChannel channel;
     private ImageStore imageStore;
-    private RatingStore ratingStore;
+    private InMemoryRatingStore innerRatingStore;
+    private LeaderboardRatingStore ratingStore;
 
     @Rule
     public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule(); // shutdow the channel at the end of the test
@@ -35,9 +48,11 @@ class LaptopServerTest {
         String serverName = InProcessServerBuilder.generateName();
         InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName(serverName).directExecutor();
         laptopStore = new InMemoryLaptopStore();
-        ratingStore = new InMemoryRatingStore();
+        innerRatingStore = new InMemoryRatingStore();
+        DistributionRatingStore distributions = new DistributionRatingStore(innerRatingStore);
+        ratingStore = new LeaderboardRatingStore(distributions);
         imageStore = new DiskImageStore("img");
-        server = new LaptopServer(serverBuilder, 0, laptopStore, imageStore, ratingStore);
+        server = new LaptopServer(serverBuilder, 0, laptopStore, imageStore, ratingStore, ratingStore, distributions);
         server.start();
         channel = grpcCleanup.register(
                 InProcessChannelBuilder.forName(serverName).directExecutor().build()
@@ -104,6 +119,109 @@ class LaptopServerTest {
 
     }
 
+    @Test
+    public void searchLaptop() {
+        Generator generator = new Generator();
+        Filter filter = Filter.newBuilder()
+                .setMaxPriceUsd(1800)
+                .setMinCpuCores(4)
+                .setMinCpuGhz(2.5)
+                .setMinRam(Memory.newBuilder().setValue(8).setUnit(Memory.Unit.GIGABYTE).build())
+                .build();
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopStore.save(laptop);
+            if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                expected.add(laptop.getId());
+            }
+        }
+
+        SearchLaptopRequest request = SearchLaptopRequest.newBuilder().setFilter(filter).build();
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        Set<String> found = new HashSet<>();
+        stub.searchLaptop(request).forEachRemaining(response -> found.add(response.getLaptop().getId()));
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void searchLaptopBatchInPages() {
+        Generator generator = new Generator();
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(3000).build();
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 95; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopStore.save(laptop);
+            expected.add(laptop.getId());
+        }
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        Set<String> found = new HashSet<>();
+        String pageToken = "";
+        int pages = 0;
+        do{
+            SearchLaptopBatchRequest request = SearchLaptopBatchRequest.newBuilder()
+                    .setFilter(filter)
+                    .setBatchSize(7)
+                    .setPageSize(20)
+                    .setPageToken(pageToken)
+                    .build();
+            pageToken = "";
+            int pageCount = 0;
+            Iterator<SearchLaptopBatchResponse> responses = stub.searchLaptopBatch(request);
+            while(responses.hasNext()){
+                SearchLaptopBatchResponse response = responses.next();
+                assertTrue(response.getLaptopsCount() <= 7);
+                pageCount += response.getLaptopsCount();
+                response.getLaptopsList().forEach(laptop -> assertTrue(found.add(laptop.getId())));
+                if(!response.getNextPageToken().isEmpty()){
+                    pageToken = response.getNextPageToken();
+                }
+            }
+            assertTrue(pageCount <= 20);
+            pages++;
+        }while(!pageToken.isEmpty());
+        assertEquals(5, pages);
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void downloadImageRange() throws IOException {
+        Laptop laptop = new Generator().NewLaptop();
+        laptopStore.save(laptop);
+        ImageWriter writer = imageStore.create(laptop.getId(), ".txt");
+        writer.write(ByteString.copyFromUtf8("0123456789"));
+        String imageID = writer.commit();
+
+        try{
+            DownloadImageRequest request = DownloadImageRequest.newBuilder()
+                    .setImageId(imageID)
+                    .setOffset(3)
+                    .setLength(5)
+                    .build();
+            LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+            Iterator<DownloadImageResponse> responses = stub.downloadImage(request);
+            DownloadImageInfo info = responses.next().getInfo();
+            assertEquals(laptop.getId(), info.getLaptopId());
+            assertEquals(10, info.getSize());
+            assertEquals(5, info.getLength());
+            ByteString content = ByteString.EMPTY;
+            while(responses.hasNext()){
+                content = content.concat(responses.next().getChunkData());
+            }
+            assertEquals("34567", content.toStringUtf8());
+        }finally {
+            imageStore.delete(imageID);
+        }
+    }
+
+    @Test
+    public void downloadImageWithAnUnknownID() {
+        DownloadImageRequest request = DownloadImageRequest.newBuilder().setImageId("unknown").build();
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        assertThrows(StatusRuntimeException.class, () -> stub.downloadImage(request).hasNext());
+    }
+
     @Test
     public void rateLaptop(){
         Generator generator = new Generator();
@@ -135,6 +253,299 @@ class LaptopServerTest {
             idx++;
         }
     }
+    @Test
+    public void rateLaptopInBatches(){
+        Generator generator = new Generator();
+        Laptop laptop1 = generator.NewLaptop();
+        Laptop laptop2 = generator.NewLaptop();
+        laptopStore.save(laptop1);
+        laptopStore.save(laptop2);
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+        RateLaptopResponseStreamObserver responseObserver = new RateLaptopResponseStreamObserver();
+
+        // more requests than fit into one batch, alternating between two laptops
+        StreamObserver<RateLaptopRequest> requestObserver = stub.rateLaptop(responseObserver);
+        int n = 300;
+        for (int i = 0; i < n; i++) {
+            requestObserver.onNext(RateLaptopRequest.newBuilder()
+                    .setLaptopId(i % 2 == 0 ? laptop1.getId() : laptop2.getId())
+                    .setScore(i % 2 == 0 ? 4 : 2 + i % 4)
+                    .build());
+        }
+        requestObserver.onCompleted();
+        assertNull(responseObserver.err);
+        assertTrue(responseObserver.completed);
+        assertEquals(n, responseObserver.responseList.size());
+        int idx = 0;
+        double sum2 = 0;
+        for(RateLaptopResponse response : responseObserver.responseList){
+            boolean first = idx % 2 == 0;
+            assertEquals(first ? laptop1.getId() : laptop2.getId(), response.getLaptopId());
+            assertEquals(idx / 2 + 1, response.getRatedCount());
+            if(first){
+                assertEquals(4, response.getAverageScore(), 1e-9);
+            }else{
+                sum2 += 2 + idx % 4;
+                assertEquals(sum2 / (idx / 2 + 1), response.getAverageScore(), 1e-9);
+            }
+            idx++;
+        }
+    }
+
+    @Test
+    public void rateLaptopWithAnUnknownID(){
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.save(laptop);
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+        RateLaptopResponseStreamObserver responseObserver = new RateLaptopResponseStreamObserver();
+
+        StreamObserver<RateLaptopRequest> requestObserver = stub.rateLaptop(responseObserver);
+        String[] laptopIDs = {laptop.getId(), laptop.getId(), UUID.randomUUID().toString(), laptop.getId()};
+        for(String laptopID : laptopIDs){
+            requestObserver.onNext(RateLaptopRequest.newBuilder().setLaptopId(laptopID).setScore(6).build());
+        }
+        requestObserver.onCompleted();
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(responseObserver.err).getCode());
+        assertEquals(2, responseObserver.responseList.size());
+        assertEquals(2, ratingStore.find(laptop.getId()).getCount());
+    }
+
+    @Test
+    public void topRatedLaptops(){
+        ratingStore.add("laptop-1", 6);
+        ratingStore.add("laptop-2", 9);
+        ratingStore.add("laptop-2", 8);
+        ratingStore.add("laptop-3", 10);
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+
+        TopRatedLaptopsResponse response = stub.topRatedLaptops(TopRatedLaptopsRequest.newBuilder()
+                .setK(2)
+                .build());
+        assertEquals(2, response.getLaptopsCount());
+        assertEquals("laptop-3", response.getLaptops(0).getLaptopId());
+        assertEquals("laptop-2", response.getLaptops(1).getLaptopId());
+        assertEquals(8.5, response.getLaptops(1).getAverageScore(), 1e-9);
+
+        response = stub.topRatedLaptops(TopRatedLaptopsRequest.newBuilder()
+                .setMinRatedCount(2)
+                .build());
+        assertEquals(1, response.getLaptopsCount());
+        assertEquals(2, response.getLaptops(0).getRatedCount());
+    }
+
+    @Test
+    public void ratingDistribution(){
+        // a rating from before a restart, which no sketch has seen
+        innerRatingStore.add("laptop-1", 1);
+        for(double score : new double[]{2, 4, 6, 8, 10}){
+            ratingStore.add("laptop-1", score);
+        }
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+
+        RatingDistributionResponse response = stub.ratingDistribution(RatingDistributionRequest.newBuilder()
+                .setLaptopId("laptop-1")
+                .build());
+        assertEquals(5, response.getRatedCount());
+        assertEquals(6, response.getTotalRatedCount());
+        assertEquals(6, response.getMedian(), 0.0625);
+        assertEquals(2, response.getP10(), 0.0625);
+        assertEquals(10, response.getP90(), 0.0625);
+        assertEquals(List.of(0L, 1L, 0L, 1L, 0L, 1L, 0L, 1L, 0L, 1L), response.getHistogramList());
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> stub.ratingDistribution(
+                RatingDistributionRequest.newBuilder().setLaptopId("laptop-2").build()));
+        assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+    }
+
+    @Test
+    public void metrics(){
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        stub.createLaptop(CreateLaptopRequest.newBuilder().setLaptop(laptop).build());
+        assertThrows(StatusRuntimeException.class, () -> stub.createLaptop(CreateLaptopRequest.newBuilder().setLaptop(laptop).build()));
+
+        GetMetricsResponse response = MetricsServiceGrpc.newBlockingStub(channel).getMetrics(GetMetricsRequest.getDefaultInstance());
+        // the metrics service itself is not metered
+        assertEquals(1, response.getMethodsCount());
+        MethodMetrics metrics = response.getMethods(0);
+        assertEquals(LaptopServiceGrpc.getCreateLaptopMethod().getFullMethodName(), metrics.getMethod());
+        assertEquals(2, metrics.getStarted());
+        assertEquals(2, metrics.getFinished());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(2, metrics.getMessagesReceived());
+        assertEquals(1, metrics.getMessagesSent());
+        assertEquals(List.of(
+                StatusCount.newBuilder().setCode("OK").setCount(1).build(),
+                StatusCount.newBuilder().setCode("ALREADY_EXISTS").setCount(1).build()), metrics.getStatusCountsList());
+        assertTrue(metrics.getLatencyMax() > 0);
+        assertTrue(metrics.getLatencyP50() <= metrics.getLatencyMax());
+    }
+
+    @Test
+    public void createLaptops(){
+        Generator generator = new Generator();
+        Laptop existing = generator.NewLaptop();
+        laptopStore.save(existing);
+        Laptop duplicated = generator.NewLaptop();
+        List<CreateLaptopsResponse> responses = new LinkedList<>();
+        List<Throwable> errors = new LinkedList<>();
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+
+        StreamObserver<CreateLaptopRequest> requestObserver = stub.createLaptops(new StreamObserver<CreateLaptopsResponse>() {
+            @Override
+            public void onNext(CreateLaptopsResponse response) {
+                responses.add(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                errors.add(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        // more laptops than fit into one batch
+        int n = 600;
+        for (int i = 0; i < n; i++) {
+            Laptop laptop = switch (i) {
+                case 10 -> generator.NewLaptop().toBuilder().setId("").build();
+                case 20 -> generator.NewLaptop().toBuilder().setId("invalid-id").build();
+                case 30 -> existing;
+                case 40, 41 -> duplicated;
+                default -> generator.NewLaptop();
+            };
+            requestObserver.onNext(CreateLaptopRequest.newBuilder().setLaptop(laptop).build());
+        }
+        requestObserver.onCompleted();
+
+        assertTrue(errors.isEmpty());
+        assertEquals(1, responses.size());
+        CreateLaptopsResponse response = responses.get(0);
+        assertEquals(n - 3, response.getCreatedCount());
+        assertEquals(List.of(10), response.getGeneratedList());
+        assertNotNull(laptopStore.find(response.getGeneratedIds(0)));
+        assertEquals(List.of(30, 41), response.getAlreadyExistsList());
+        assertEquals(List.of(20), response.getInvalidList());
+        assertNotNull(laptopStore.find(duplicated.getId()));
+    }
+
+    @Test
+    public void watchLaptops() throws Exception {
+        Generator generator = new Generator();
+        // laptops created before the watch are not sent
+        laptopStore.save(generator.NewLaptop());
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(2500).setMinCpuCores(4).build();
+        List<String> watched = new CopyOnWriteArrayList<>();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        LaptopServiceGrpc.newStub(channel).watchLaptops(WatchLaptopsRequest.newBuilder().setFilter(filter).build(),
+                new StreamObserver<WatchLaptopsResponse>() {
+                    @Override
+                    public void onNext(WatchLaptopsResponse response) {
+                        watched.add(response.getLaptop().getId());
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        errors.add(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        List<String> expected = new LinkedList<>();
+        for (int i = 0; i < 50; i++) {
+            Laptop laptop = generator.NewLaptop();
+            stub.createLaptop(CreateLaptopRequest.newBuilder().setLaptop(laptop).build());
+            if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                expected.add(laptop.getId());
+            }
+        }
+        // laptops are delivered off the creating call, wait for the last one
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(watched.size() < expected.size() && System.nanoTime() < deadline){
+            Thread.sleep(10);
+        }
+        assertEquals(expected, watched);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void watchLaptopsOverflow() throws Exception {
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+        List<String> watched = new CopyOnWriteArrayList<>();
+        CountDownLatch failed = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        LaptopServiceGrpc.newStub(channel).watchLaptops(WatchLaptopsRequest.newBuilder().setFilter(filter).build(),
+                new ClientResponseObserver<WatchLaptopsRequest, WatchLaptopsResponse>() {
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<WatchLaptopsRequest> requestStream) {
+                        // the client takes one laptop and then stops reading
+                        requestStream.disableAutoRequestWithInitial(1);
+                    }
+
+                    @Override
+                    public void onNext(WatchLaptopsResponse response) {
+                        watched.add(response.getLaptop().getId());
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        error.set(t);
+                        failed.countDown();
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+
+        // at most one laptop is sent, a queue of 1024 fills up and a later one overflows it
+        Generator generator = new Generator();
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        for (int i = 0; i < 1026; i++) {
+            stub.createLaptop(CreateLaptopRequest.newBuilder().setLaptop(generator.NewLaptop()).build());
+        }
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(error.get()).getCode());
+        assertTrue(watched.size() <= 1);
+    }
+
+    @Test
+    public void executorModes() throws Exception {
+        for(ExecutorMode executorMode : ExecutorMode.values()){
+            if(executorMode == ExecutorMode.VIRTUAL && Runtime.version().feature() < 21){
+                continue;
+            }
+            String serverName = InProcessServerBuilder.generateName();
+            LaptopServer laptopServer = new LaptopServer(InProcessServerBuilder.forName(serverName), 0,
+                    new InMemoryLaptopStore(), new DiskImageStore("img"), new InMemoryRatingStore(), executorMode, 2);
+            laptopServer.start();
+            ManagedChannel managedChannel = InProcessChannelBuilder.forName(serverName).build();
+            try{
+                // a blocking and a non blocking method
+                LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(managedChannel);
+                Laptop laptop = new Generator().NewLaptop();
+                CreateLaptopResponse response = stub.createLaptop(CreateLaptopRequest.newBuilder().setLaptop(laptop).build());
+                assertEquals(laptop.getId(), response.getId());
+                Iterator<SearchLaptopResponse> responseIterator = stub.searchLaptop(SearchLaptopRequest.newBuilder()
+                        .setFilter(Filter.newBuilder().setMaxPriceUsd(1e9))
+                        .build());
+                assertEquals(laptop.getId(), responseIterator.next().getLaptop().getId());
+                assertFalse(responseIterator.hasNext());
+            }finally {
+                managedChannel.shutdownNow();
+                laptopServer.stop();
+            }
+        }
+    }
+
     private class RateLaptopResponseStreamObserver implements StreamObserver<RateLaptopResponse>{
         public List<RateLaptopResponse> responseList;
         public Throwable err;
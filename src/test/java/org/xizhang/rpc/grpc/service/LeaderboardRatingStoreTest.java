@@ -0,0 +1,109 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LeaderboardRatingStoreTest {
+
+    @Test
+    void top() {
+        InMemoryRatingStore inMemoryRatingStore = new InMemoryRatingStore();
+        inMemoryRatingStore.add("a", 9);
+        LeaderboardRatingStore ratingStore = new LeaderboardRatingStore(inMemoryRatingStore);
+        ratingStore.add("b", 7);
+        ratingStore.add("b", 8);
+        ratingStore.add("c", 10);
+        ratingStore.add("c", 2);
+        ratingStore.add("d", new double[]{8, 8, 8});
+
+        List<RatingEntry> top = ratingStore.top(3, 0);
+        assertEquals(List.of("a", "d", "b"), top.stream().map(RatingEntry::getLaptopID).toList());
+        assertEquals(8, top.get(1).getAverage(), 1e-9);
+
+        top = ratingStore.top(10, 2);
+        assertEquals(List.of("d", "b", "c"), top.stream().map(RatingEntry::getLaptopID).toList());
+        assertEquals(3, top.get(0).getRating().getCount());
+    }
+
+    @Test
+    void topWhileRating() throws InterruptedException {
+        LeaderboardRatingStore ratingStore = new LeaderboardRatingStore(new InMemoryRatingStore());
+        List<Callable<Object>> tasks = new LinkedList<>();
+        int laptops = 50;
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < laptops; j++) {
+                String laptopID = "laptop-" + j;
+                double score = 1 + (i + j) % 10;
+                tasks.add(Executors.callable(() -> ratingStore.add(laptopID, score)));
+            }
+        }
+        Executors.newFixedThreadPool(8).invokeAll(tasks);
+
+        List<RatingEntry> top = ratingStore.top(laptops, 100);
+        assertEquals(laptops, top.size());
+        for (int i = 0; i < top.size(); i++) {
+            RatingEntry entry = top.get(i);
+            Rating rating = ratingStore.find(entry.getLaptopID());
+            assertEquals(rating.getCount(), entry.getRating().getCount());
+            if(i > 0){
+                assertTrue(top.get(i - 1).getAverage() >= entry.getAverage());
+            }
+        }
+    }
+
+    @Test
+    void topWithMinCount() {
+        // minCount has to look past the best entries
+        LeaderboardRatingStore ratingStore = new LeaderboardRatingStore(new InMemoryRatingStore());
+        ratingStore.add("a", 10);
+        ratingStore.add("b", 9);
+        ratingStore.add("c", new double[]{6, 6});
+        ratingStore.add("d", new double[]{5, 5});
+        assertEquals(List.of("a", "b"), ratingStore.top(2, 0).stream().map(RatingEntry::getLaptopID).toList());
+        assertEquals(List.of("c", "d"), ratingStore.top(5, 2).stream().map(RatingEntry::getLaptopID).toList());
+
+        ratingStore.add("d", new double[]{10, 10});
+        assertEquals(List.of("a", "d"), ratingStore.top(2, 0).stream().map(RatingEntry::getLaptopID).toList());
+    }
+
+    @Test
+    void topWhileMoving() throws Exception {
+        LeaderboardRatingStore ratingStore = new LeaderboardRatingStore(new InMemoryRatingStore());
+        int laptops = 50;
+        for (int j = 0; j < laptops; j++) {
+            ratingStore.add("laptop-" + j, 5);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Callable<Object>> tasks = new LinkedList<>();
+        for (int i = 0; i < 20000; i++) {
+            String laptopID = "laptop-" + i % laptops;
+            double score = 1 + i % 10;
+            tasks.add(Executors.callable(() -> ratingStore.add(laptopID, score)));
+        }
+        List<Future<Object>> futures = new LinkedList<>();
+        for(Callable<Object> task : tasks){
+            futures.add(executor.submit(task));
+        }
+        // laptops move around while they are read, none of them is there twice
+        while(!futures.get(futures.size() - 1).isDone()){
+            List<RatingEntry> top = ratingStore.top(laptops, 0);
+            assertEquals(top.size(), top.stream().map(RatingEntry::getLaptopID).distinct().count());
+        }
+        for(Future<Object> future : futures){
+            future.get();
+        }
+        executor.shutdown();
+        // once the ratings settle every laptop is there exactly once
+        List<RatingEntry> top = ratingStore.top(laptops + 1, 0);
+        assertEquals(laptops, top.stream().map(RatingEntry::getLaptopID).distinct().count());
+        assertEquals(laptops, top.size());
+    }
+}
@@ -0,0 +1,202 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogStructuredLaptopStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoverAfterRestart() throws Exception {
+        Generator generator = new Generator();
+        List<Laptop> laptops = new LinkedList<>();
+        List<Callable<Object>> tasks = new LinkedList<>();
+        // small segments so that the log rolls over a few times
+        LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory, new InMemoryLaptopStore(), 16, 16 << 10);
+        for (int i = 0; i < 200; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptops.add(laptop);
+            tasks.add(Executors.callable(() -> laptopStore.save(laptop)));
+        }
+        Executors.newFixedThreadPool(8).invokeAll(tasks);
+        laptopStore.close();
+
+        LogStructuredLaptopStore recovered = new LogStructuredLaptopStore(directory);
+        for(Laptop laptop : laptops){
+            assertEquals(laptop, recovered.find(laptop.getId()));
+        }
+        assertThrows(AlreadyExistsException.class, () -> recovered.save(laptops.get(0)));
+        recovered.close();
+    }
+
+    @Test
+    void saveAll() throws IOException {
+        Generator generator = new Generator();
+        List<Laptop> laptops = new LinkedList<>();
+        for (int i = 0; i < 100; i++) {
+            laptops.add(generator.NewLaptop());
+        }
+        laptops.add(laptops.get(7));
+        LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory);
+        laptopStore.save(laptops.get(3));
+        BitSet existing = laptopStore.saveAll(laptops);
+        assertEquals(Set.of(3, 100), existing.stream().boxed().collect(Collectors.toSet()));
+        laptopStore.close();
+
+        LogStructuredLaptopStore recovered = new LogStructuredLaptopStore(directory);
+        for(Laptop laptop : laptops){
+            assertEquals(laptop, recovered.find(laptop.getId()));
+        }
+        recovered.close();
+    }
+
+    @Test
+    void truncateTornRecord() throws IOException {
+        Generator generator = new Generator();
+        Laptop first = generator.NewLaptop();
+        Laptop second = generator.NewLaptop();
+        LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory);
+        laptopStore.save(first);
+        laptopStore.save(second);
+        laptopStore.close();
+
+        // simulate a crash in the middle of writing the second record
+        Path segment = lastSegment();
+        try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)){
+            channel.truncate(channel.size() - 10);
+        }
+
+        LogStructuredLaptopStore recovered = new LogStructuredLaptopStore(directory);
+        assertEquals(first, recovered.find(first.getId()));
+        assertNull(recovered.find(second.getId()));
+        recovered.save(second);
+        recovered.close();
+
+        LogStructuredLaptopStore again = new LogStructuredLaptopStore(directory);
+        assertEquals(second, again.find(second.getId()));
+        again.close();
+    }
+
+    @Test
+    void truncateZeroFilledTail() throws IOException {
+        Generator generator = new Generator();
+        Laptop first = generator.NewLaptop();
+        Laptop second = generator.NewLaptop();
+        LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory);
+        laptopStore.save(first);
+        laptopStore.close();
+
+        // a crash after the file grew but before the record reached the disk leaves zeros
+        Path segment = lastSegment();
+        try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+            channel.write(ByteBuffer.allocate(64));
+        }
+
+        LogStructuredLaptopStore recovered = new LogStructuredLaptopStore(directory);
+        assertEquals(first, recovered.find(first.getId()));
+        recovered.save(second);
+        recovered.close();
+
+        LogStructuredLaptopStore again = new LogStructuredLaptopStore(directory);
+        assertEquals(first, again.find(first.getId()));
+        assertEquals(second, again.find(second.getId()));
+        again.close();
+    }
+
+    @Test
+    void truncateCorruptedRecord() throws IOException {
+        Generator generator = new Generator();
+        Laptop first = generator.NewLaptop();
+        Laptop second = generator.NewLaptop();
+        LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory);
+        laptopStore.save(first);
+        laptopStore.save(second);
+        laptopStore.close();
+
+        // a flipped bit in the second record still parses as a laptop, the checksum catches it
+        Path segment = lastSegment();
+        try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            long position = channel.size() - 8;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 1)).rewind();
+            channel.write(b, position);
+        }
+
+        LogStructuredLaptopStore recovered = new LogStructuredLaptopStore(directory);
+        assertEquals(first, recovered.find(first.getId()));
+        assertNull(recovered.find(second.getId()));
+        recovered.close();
+    }
+
+    @Test
+    void saveWhileRolloverFails() throws IOException {
+        Generator generator = new Generator();
+        List<Laptop> laptops = new LinkedList<>();
+        // every batch fills a segment, and the next segment cannot be created while a
+        // directory sits at its path
+        LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory, new InMemoryLaptopStore(), 16, 1);
+        Path blocked = Files.createDirectory(directory.resolve(String.format("segment-%020d.log", 2)));
+        for (int i = 0; i < 10; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptops.add(laptop);
+            laptopStore.save(laptop);
+            assertEquals(laptop, laptopStore.find(laptop.getId()));
+        }
+        Files.delete(blocked);
+        for (int i = 0; i < 10; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptops.add(laptop);
+            laptopStore.save(laptop);
+        }
+        laptopStore.close();
+
+        LogStructuredLaptopStore recovered = new LogStructuredLaptopStore(directory);
+        for(Laptop laptop : laptops){
+            assertEquals(laptop, recovered.find(laptop.getId()));
+        }
+        recovered.close();
+    }
+
+    @Test
+    void saveAfterClose() throws IOException {
+        LogStructuredLaptopStore laptopStore = new LogStructuredLaptopStore(directory);
+        laptopStore.close();
+        Laptop laptop = new Generator().NewLaptop();
+        assertThrows(IllegalStateException.class, () -> laptopStore.save(laptop));
+        assertThrows(IllegalStateException.class, () -> laptopStore.saveAll(List.of(laptop)));
+        assertNull(laptopStore.find(laptop.getId()));
+    }
+
+    private Path lastSegment() throws IOException {
+        try(Stream<Path> files = Files.list(directory)){
+            return files.filter(path -> {
+                try {
+                    return Files.size(path) > 0;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }).sorted().reduce((a, b) -> b).orElseThrow();
+        }
+    }
+}
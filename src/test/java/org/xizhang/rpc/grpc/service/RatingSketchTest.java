@@ -0,0 +1,45 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RatingSketchTest {
+
+    @Test
+    void quantileWithinAccuracy() {
+        Random random = new Random(42);
+        RatingSketch sketch = new RatingSketch();
+        double[] scores = new double[10001];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = 1 + 9 * random.nextDouble() * random.nextDouble();
+            sketch.add(scores[i]);
+        }
+        Arrays.sort(scores);
+        for(double q : new double[]{0, 0.1, 0.25, 0.5, 0.9, 0.99, 1}){
+            double exact = scores[(int) Math.max(0, Math.ceil(q * scores.length) - 1)];
+            assertEquals(exact, sketch.quantile(q), 0.0625);
+        }
+        assertEquals(scores.length, sketch.getCount());
+    }
+
+    @Test
+    void histogramAndMerge() {
+        RatingSketch sketch1 = new RatingSketch();
+        RatingSketch sketch2 = new RatingSketch();
+        for(double score : new double[]{1, 1.49, 1.5, 7.5, 10, 12}){
+            sketch1.add(score);
+        }
+        sketch2.add(2.49);
+        sketch2.add(-3);
+        sketch1.merge(sketch2);
+
+        assertArrayEquals(new long[]{3, 2, 0, 0, 0, 0, 0, 1, 0, 2}, sketch1.histogram());
+        assertEquals(8, sketch1.getCount());
+        assertEquals(8, sketch1.copy().getCount());
+        assertTrue(Double.isNaN(new RatingSketch().quantile(0.5)));
+    }
+}
@@ -0,0 +1,145 @@
+package org.xizhang.rpc.grpc.service;
+
+import com.xizhang.rpc.grpc.pcbook.pb.Filter;
+import com.xizhang.rpc.grpc.pcbook.pb.Laptop;
+import com.xizhang.rpc.grpc.pcbook.pb.Memory;
+import io.grpc.Context;
+import org.junit.jupiter.api.Test;
+import org.xizhang.rpc.grpc.sample.Generator;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedLaptopStoreTest {
+
+    @Test
+    void searchMatchesFullScan() {
+        ShardedLaptopStore laptopStore = new ShardedLaptopStore(8);
+        Generator generator = new Generator();
+        List<Laptop> laptops = new LinkedList<>();
+        for (int i = 0; i < 2000; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptops.add(laptop);
+            laptopStore.save(laptop);
+        }
+
+        for(Filter filter : new Filter[]{newFilter(3000, 2, 2.0, 4), newFilter(2000, 8, 3.0, 32), Filter.getDefaultInstance()}){
+            Set<String> expected = new HashSet<>();
+            for(Laptop laptop : laptops){
+                if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                    expected.add(laptop.getId());
+                }
+            }
+            // hits are sent on the caller's thread, never on a pool worker
+            Thread caller = Thread.currentThread();
+            Set<String> found = new HashSet<>();
+            laptopStore.search(Context.current(), filter, laptop -> {
+                assertSame(caller, Thread.currentThread());
+                assertTrue(found.add(laptop.getId()));
+            });
+            assertEquals(expected, found);
+
+            // pages cover every hit exactly once, across shard boundaries
+            for(int limit : new int[]{1, 7, 5000}){
+                Set<String> paged = new HashSet<>();
+                long after = -1;
+                int pages = 0;
+                do{
+                    int before = paged.size();
+                    after = laptopStore.search(Context.current(), filter, after, limit,
+                            laptop -> assertTrue(paged.add(laptop.getId())));
+                    assertTrue(paged.size() - before <= limit);
+                    assertTrue(after < 0 || paged.size() - before == limit);
+                    pages++;
+                }while(after >= 0);
+                assertEquals(expected, paged);
+                assertTrue(pages <= Math.max(1, (expected.size() + limit - 1) / limit));
+            }
+        }
+        laptopStore.close();
+    }
+
+    @Test
+    void saveAll() {
+        ShardedLaptopStore laptopStore = new ShardedLaptopStore(8);
+        Generator generator = new Generator();
+        List<Laptop> laptops = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            laptops.add(generator.NewLaptop());
+        }
+        laptopStore.save(laptops.get(3));
+        // a laptop already stored and one repeated within the batch are skipped
+        List<Laptop> batch = new ArrayList<>(laptops);
+        batch.add(laptops.get(7));
+        BitSet existing = laptopStore.saveAll(batch);
+        assertTrue(existing.get(3));
+        assertTrue(existing.get(1000));
+        assertEquals(2, existing.cardinality());
+
+        for(Filter filter : new Filter[]{newFilter(3000, 2, 2.0, 4), newFilter(1500, 8, 3.0, 32), Filter.getDefaultInstance()}){
+            Set<String> expected = new HashSet<>();
+            for(Laptop laptop : laptops){
+                assertEquals(laptop, laptopStore.find(laptop.getId()));
+                if(InMemoryLaptopStore.isQualified(filter, laptop)){
+                    expected.add(laptop.getId());
+                }
+            }
+            Set<String> found = new HashSet<>();
+            laptopStore.search(Context.current(), filter, laptop -> assertTrue(found.add(laptop.getId())));
+            assertEquals(expected, found);
+        }
+        laptopStore.close();
+    }
+
+    @Test
+    void saveWithAnAlreadyExistsID() {
+        ShardedLaptopStore laptopStore = new ShardedLaptopStore(4);
+        Laptop laptop = new Generator().NewLaptop();
+        laptopStore.save(laptop);
+        assertThrows(AlreadyExistsException.class, () -> laptopStore.save(laptop));
+        assertEquals(laptop, laptopStore.find(laptop.getId()));
+        laptopStore.close();
+    }
+
+    @Test
+    void closeShutsDownOnlyItsOwnPool() {
+        ShardedLaptopStore laptopStore = new ShardedLaptopStore(4);
+        laptopStore.save(new Generator().NewLaptop());
+        laptopStore.close();
+        assertThrows(RejectedExecutionException.class,
+                () -> laptopStore.search(Context.current(), Filter.getDefaultInstance(), laptop -> {}));
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        ShardedLaptopStore sharedPoolStore = new ShardedLaptopStore(pool, 4);
+        Laptop laptop = new Generator().NewLaptop();
+        sharedPoolStore.save(laptop);
+        sharedPoolStore.close();
+        assertFalse(pool.isShutdown());
+        List<Laptop> found = new ArrayList<>();
+        // every laptop matches
+        sharedPoolStore.search(Context.current(), newFilter(Double.MAX_VALUE, 0, 0, 0), found::add);
+        assertEquals(List.of(laptop), found);
+        pool.shutdown();
+    }
+
+    private Filter newFilter(double maxPrice, int minCores, double minGhz, long minRamGB) {
+        Memory minRam = Memory.newBuilder()
+                .setValue(minRamGB)
+                .setUnit(Memory.Unit.GIGABYTE)
+                .build();
+        return Filter.newBuilder()
+                .setMaxPriceUsd(maxPrice)
+                .setMinCpuCores(minCores)
+                .setMinCpuGhz(minGhz)
+                .setMinRam(minRam)
+                .build();
+    }
+}
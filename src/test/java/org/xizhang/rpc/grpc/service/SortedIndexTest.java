@@ -0,0 +1,61 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SortedIndexTest {
+
+    @Test
+    void ranges() {
+        SortedIndex<Integer, String> index = new SortedIndex<>();
+        index.add(1, "a");
+        index.add(2, "b");
+        index.add(2, "c");
+        index.add(3, "d");
+        index.remove(2, "b");
+        index.remove(3, "d");
+
+        assertEquals(Set.of("a", "c"), toSet(index.atMost(2)));
+        assertEquals(Set.of("c"), toSet(index.atLeast(2)));
+    }
+
+    @Test
+    void addRemoveSameKey() throws InterruptedException {
+        SortedIndex<Integer, Integer> index = new SortedIndex<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Object>> tasks = new LinkedList<>();
+        // every value is added and removed under one key, emptying its set over and over;
+        // the even values are added back and must be the only ones left
+        for (int i = 0; i < 10000; i++) {
+            int value = i;
+            tasks.add(Executors.callable(() -> {
+                index.add(0, value);
+                index.remove(0, value);
+                if(value % 2 == 0){
+                    index.add(0, value);
+                }
+            }));
+        }
+        executor.invokeAll(tasks);
+        executor.shutdown();
+
+        Set<Integer> values = toSet(index.atMost(0));
+        assertEquals(5000, values.size());
+        values.forEach(value -> assertEquals(0, value % 2));
+    }
+
+    private static <V> Set<V> toSet(Iterable<V> values){
+        Set<V> set = new HashSet<>();
+        values.forEach(set::add);
+        return set;
+    }
+}
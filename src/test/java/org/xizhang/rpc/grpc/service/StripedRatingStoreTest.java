@@ -0,0 +1,47 @@
+package org.xizhang.rpc.grpc.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripedRatingStoreTest {
+
+    @Test
+    void addOnAHotLaptop() throws Exception {
+        StripedRatingStore ratingStore = new StripedRatingStore();
+        String laptopID = UUID.randomUUID().toString();
+        double score = 5;
+        int threads = 64;
+        int n = 10000;
+
+        List<Callable<Object>> tasks = new LinkedList<>();
+        for (int i = 0; i < threads; i++) {
+            tasks.add(() -> {
+                for (int j = 0; j < n; j++) {
+                    Rating rating = ratingStore.add(laptopID, score);
+                    // a rating is never counted without its score
+                    assertEquals(rating.getCount() * score, rating.getSum(), 1e-9);
+                }
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for(Future<Object> future : executor.invokeAll(tasks)){
+            future.get();
+        }
+        executor.shutdown();
+
+        Rating rating = ratingStore.find(laptopID);
+        assertEquals(threads * n, rating.getCount());
+        assertEquals(threads * n * score, rating.getSum(), 1e-9);
+        assertNull(ratingStore.find(UUID.randomUUID().toString()));
+    }
+}